@@ -1,25 +1,47 @@
 package it.devchallenge.excel.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import it.devchallenge.excel.dto.AddCellRequest;
 import it.devchallenge.excel.dto.CellResponse;
+import it.devchallenge.excel.dto.ScenarioRequest;
 import it.devchallenge.excel.exceptions.CalculationException;
 import it.devchallenge.excel.exceptions.NotFoundException;
+import it.devchallenge.excel.service.CsvImportService;
+import it.devchallenge.excel.service.ScenarioService;
 import it.devchallenge.excel.service.SheetService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
 
 @Slf4j
 @RestController
 @RequestMapping(path = "/api/v1/{sheetName}")
 public class SheetController {
     private final SheetService sheetService;
+    private final ScenarioService scenarioService;
+    private final CsvImportService csvImportService;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public SheetController(SheetService sheetService) {
+    public SheetController(SheetService sheetService, ScenarioService scenarioService,
+                           CsvImportService csvImportService, ObjectMapper objectMapper) {
         this.sheetService = sheetService;
+        this.scenarioService = scenarioService;
+        this.csvImportService = csvImportService;
+        this.objectMapper = objectMapper;
     }
 
     @PostMapping("/{cellName}")
@@ -39,13 +61,140 @@ public class SheetController {
         }
     }
 
+    // a parameter of its own, so a body in any format without it is never taken for scenarios
+    @PostMapping(params = "scenarios")
+    public ResponseEntity<?> evaluateScenarios(@PathVariable String sheetName,
+                                               @RequestBody ScenarioRequest request) {
+        try {
+            return ResponseEntity.status(HttpStatus.OK)
+                    .body(scenarioService.evaluate(sheetName, request));
+        } catch (NotFoundException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid scenarios", e);
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @PostMapping(consumes = "text/csv")
+    public ResponseEntity<?> importCsv(@PathVariable String sheetName,
+                                       @RequestParam(defaultValue = "cells") String layout,
+                                       InputStream body) throws IOException {
+        CsvImportService.Layout csvLayout;
+        try {
+            csvLayout = CsvImportService.Layout.of(layout);
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid import layout", e);
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.status(HttpStatus.CREATED)
+                .body(csvImportService.importCsv(sheetName, new InputStreamReader(body, StandardCharsets.UTF_8), csvLayout));
+    }
+
     @GetMapping
-    public ResponseEntity<?> getSheet(@PathVariable String sheetName) {
+    public ResponseEntity<?> getSheet(@PathVariable String sheetName,
+                                      @RequestParam(required = false) Integer limit,
+                                      @RequestParam(required = false) String cursor,
+                                      @RequestParam(required = false) String prefix,
+                                      @RequestParam(required = false) Set<String> fields) {
         try {
+            if (limit == null && cursor == null && prefix == null && fields == null) {
+                return ResponseEntity.status(HttpStatus.OK)
+                        .body(sheetService.getSheet(sheetName));
+            }
             return ResponseEntity.status(HttpStatus.OK)
-                    .body(sheetService.getSheet(sheetName));
+                    .body(sheetService.getSheetPage(sheetName, prefix, cursor, limit,
+                            fields == null ? SheetService.CELL_FIELDS : fields));
         } catch (NotFoundException e) {
             return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid sheet query", e);
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @GetMapping(params = "stream")
+    public ResponseEntity<StreamingResponseBody> streamSheet(@PathVariable String sheetName,
+                                                             @RequestParam String stream) {
+        if (!"ndjson".equalsIgnoreCase(stream) && !"json".equalsIgnoreCase(stream)) {
+            log.error("Invalid stream format {}", stream);
+            return ResponseEntity.badRequest().build();
+        }
+        if (!sheetService.sheetExists(sheetName)) {
+            return ResponseEntity.notFound().build();
+        }
+        // admitted before the status is sent, the export is refused with 429 or written to the end
+        var permit = sheetService.admitStream();
+        if ("ndjson".equalsIgnoreCase(stream)) {
+            return ResponseEntity.status(HttpStatus.OK)
+                    .contentType(MediaType.APPLICATION_NDJSON)
+                    .body(out -> {
+                        try (permit) {
+                            writeNdjson(sheetName, out);
+                        }
+                    });
+        }
+        return ResponseEntity.status(HttpStatus.OK)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(out -> {
+                    try (permit) {
+                        writeJson(sheetName, out);
+                    }
+                });
+    }
+
+    private void writeNdjson(String sheetName, OutputStream out) throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.setRootValueSeparator(null);
+            sheetService.streamSheet(sheetName, new SheetService.CellConsumer() {
+                @Override
+                public void accept(String cellName, CellResponse cell) throws IOException {
+                    generator.writeStartObject();
+                    generator.writeStringField("name", cellName);
+                    generator.writeStringField("value", cell.getValue());
+                    generator.writeStringField("result", cell.getResult());
+                    generator.writeEndObject();
+                    generator.writeRaw('\n');
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    generator.flush();
+                }
+            });
+        }
+    }
+
+    private void writeJson(String sheetName, OutputStream out) throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.writeStartObject();
+            sheetService.streamSheet(sheetName, new SheetService.CellConsumer() {
+                @Override
+                public void accept(String cellName, CellResponse cell) throws IOException {
+                    generator.writeFieldName(cellName);
+                    generator.writeObject(cell);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    generator.flush();
+                }
+            });
+            generator.writeEndObject();
+        }
+    }
+
+    @GetMapping(params = "cells")
+    public ResponseEntity<?> getCells(@PathVariable String sheetName,
+                                      @RequestParam List<String> cells) {
+        try {
+            return ResponseEntity.status(HttpStatus.OK)
+                    .body(sheetService.getCells(sheetName, cells));
+        } catch (NotFoundException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid cells query", e);
+            return ResponseEntity.badRequest().build();
         }
     }
 
@@ -59,4 +208,15 @@ public class SheetController {
             return ResponseEntity.notFound().build();
         }
     }
+
+    @GetMapping("/{cellName}/explain")
+    public ResponseEntity<?> explainCell(@PathVariable String sheetName,
+                                         @PathVariable String cellName) {
+        try {
+            return ResponseEntity.status(HttpStatus.OK)
+                    .body(sheetService.explainCell(sheetName, cellName));
+        } catch (NotFoundException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
 }
@@ -0,0 +1,38 @@
+package it.devchallenge.excel.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Setter
+@Getter
+@Builder
+public class ExplainResponse {
+    private String value;
+    private String result;
+    private int repositoryCalls;
+    private long totalNanos;
+    private Node tree;
+
+    /**
+     * Cell visited during the evaluation. A cell used by several formulas is expanded only at its first occurrence.
+     */
+    @Setter
+    @Getter
+    @Builder
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public static class Node {
+        private String cell;
+        private String value;
+        // cache, snapshot, storage or missing
+        private String source;
+        private long lookupNanos;
+        private long parseNanos;
+        private long evaluateNanos;
+        private int visits;
+        private List<Node> children;
+    }
+}
@@ -0,0 +1,21 @@
+package it.devchallenge.excel.dto;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Setter
+@Getter
+@Builder
+public class ImportResponse {
+    // cells stored, including formulas that failed validation
+    private long imported;
+    // records rejected and formulas that failed validation
+    private long failed;
+    // first failures only, see sheet.import.max-errors
+    private List<String> errors;
+    private long millis;
+    private long cellsPerSecond;
+}
@@ -0,0 +1,19 @@
+package it.devchallenge.excel.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class ScenarioRequest {
+    private List<String> inputs;
+    private List<String> outputs;
+    // one vector of input values per scenario, in the order of inputs
+    private List<List<Double>> scenarios;
+}
@@ -0,0 +1,16 @@
+package it.devchallenge.excel.dto;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Setter
+@Getter
+@Builder
+public class ScenarioResponse {
+    private List<String> outputs;
+    // one row of output results per scenario, in the order of outputs
+    private List<List<String>> results;
+}
@@ -0,0 +1,15 @@
+package it.devchallenge.excel.dto;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Map;
+
+@Setter
+@Getter
+@Builder
+public class SheetPageResponse {
+    private Map<String, CellResponse> cells;
+    private String nextCursor;
+}
@@ -1,6 +1,7 @@
 package it.devchallenge.excel.exceptions;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -9,6 +10,16 @@ import org.springframework.web.bind.annotation.ExceptionHandler;
 @Slf4j
 @ControllerAdvice
 public class ApiExceptionHandler {
+    @ExceptionHandler(OverloadedException.class)
+    public ResponseEntity<String> handleOverloadedException(OverloadedException ex) {
+        log.warn("Request rejected: {}", ex.getMessage());
+        // Retry-After is in whole seconds
+        long retryAfter = Math.max(1, (ex.getRetryAfter().toMillis() + 999) / 1000);
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter))
+                .body("Server is overloaded, retry later.");
+    }
+
     @ExceptionHandler(Exception.class)
     public ResponseEntity<String> handleGenericException(Exception ex) {
         log.error("{} handle.", ex.getClass().getName(), ex);
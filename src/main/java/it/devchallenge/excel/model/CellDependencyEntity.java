@@ -0,0 +1,29 @@
+package it.devchallenge.excel.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.UUID;
+
+/**
+ * Cross-sheet edge: the formula of cell sheetKey/nameKey uses cell targetSheetKey/targetNameKey of another sheet.
+ */
+@Builder
+@Getter
+@Setter
+@Document(collection = "cellDependencies")
+@CompoundIndex(name = "source", def = "{'sheetKey': 1, 'nameKey': 1}")
+@CompoundIndex(name = "target", def = "{'targetSheetKey': 1, 'targetNameKey': 1}")
+public class CellDependencyEntity {
+    @Id
+    @Builder.Default
+    private UUID id = UUID.randomUUID();
+    private String sheetKey;
+    private String nameKey;
+    private String targetSheetKey;
+    private String targetNameKey;
+}
@@ -1,17 +1,26 @@
 package it.devchallenge.excel.model;
 
+import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
+import lombok.NoArgsConstructor;
 import lombok.Setter;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.Locale;
 import java.util.UUID;
 
-@Builder
+// fields missing in a document, e.g. version of cells stored before it was added or projected out, keep defaults
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder(toBuilder = true)
 @Getter
 @Setter
 @Document(collection = "cells")
+@CompoundIndex(name = "sheet_name_key", def = "{'sheetKey': 1, 'nameKey': 1}")
+@CompoundIndex(name = "sheet_version", def = "{'sheetKey': 1, 'version': 1}")
 public class CellEntity {
     @Id
     @Builder.Default
@@ -21,6 +30,17 @@ public class CellEntity {
     private String value;
     private CellType type;
 
+    // lower-cased copies of sheetName and name, filled before every save, used for indexed lookups
+    private String sheetKey;
+    private String nameKey;
+
+    // reserved number of the sheet version the cell was stored with, see SheetVersionEntity
+    private long version;
+
+    public static String normalize(String name) {
+        return name == null ? null : name.toLowerCase(Locale.ROOT);
+    }
+
     public enum CellType {
         STRING, DIGIT, FORMULA
     }
@@ -0,0 +1,32 @@
+package it.devchallenge.excel.model;
+
+/**
+ * Cell used in a formula, either {@code cell} in the sheet of the formula or {@code sheet!cell} in another sheet.
+ */
+public record CellReference(String sheetName, String cellName) {
+    public static final char SHEET_SEPARATOR = '!';
+
+    public static CellReference parse(String reference, String formulaSheetName) {
+        int separator = reference.indexOf(SHEET_SEPARATOR);
+        if (separator < 0) {
+            return new CellReference(formulaSheetName, reference);
+        }
+        return new CellReference(reference.substring(0, separator), reference.substring(separator + 1));
+    }
+
+    public static CellReference of(CellEntity cell) {
+        return new CellReference(cell.getSheetName(), cell.getName());
+    }
+
+    public String sheetKey() {
+        return CellEntity.normalize(sheetName);
+    }
+
+    public String nameKey() {
+        return CellEntity.normalize(cellName);
+    }
+
+    public String key() {
+        return sheetKey() + SHEET_SEPARATOR + nameKey();
+    }
+}
@@ -0,0 +1,31 @@
+package it.devchallenge.excel.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Sheet-level index: at least one formula of sheetKey uses a cell of referencedSheetKey.
+ */
+@Builder
+@Getter
+@Setter
+@Document(collection = "sheetDependencies")
+public class SheetDependencyEntity {
+    @Id
+    private String id;
+    private String sheetKey;
+    @Indexed
+    private String referencedSheetKey;
+
+    public static SheetDependencyEntity of(String sheetKey, String referencedSheetKey) {
+        return SheetDependencyEntity.builder()
+                .id(sheetKey + "->" + referencedSheetKey)
+                .sheetKey(sheetKey)
+                .referencedSheetKey(referencedSheetKey)
+                .build();
+    }
+}
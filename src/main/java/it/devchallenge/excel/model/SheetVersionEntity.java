@@ -0,0 +1,23 @@
+package it.devchallenge.excel.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Version stamp of a sheet shared by all instances. Every stored batch takes the next reserved number before it
+ * is written and stamps its cells with it, committed is incremented after the batch is written.
+ */
+@Builder
+@Getter
+@Setter
+@Document(collection = "sheetVersions")
+public class SheetVersionEntity {
+    // sheetKey
+    @Id
+    private String id;
+    private long reserved;
+    private long committed;
+}
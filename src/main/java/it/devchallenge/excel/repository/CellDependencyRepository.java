@@ -0,0 +1,15 @@
+package it.devchallenge.excel.repository;
+
+import it.devchallenge.excel.model.CellDependencyEntity;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+public interface CellDependencyRepository extends MongoRepository<CellDependencyEntity, UUID> {
+    List<CellDependencyEntity> findAllByTargetSheetKeyAndTargetNameKey(String targetSheetKey, String targetNameKey);
+    List<CellDependencyEntity> findAllByTargetSheetKeyAndTargetNameKeyIn(String targetSheetKey, Collection<String> targetNameKeys);
+    boolean existsBySheetKeyAndTargetSheetKey(String sheetKey, String targetSheetKey);
+    void deleteAllBySheetKeyAndNameKey(String sheetKey, String nameKey);
+}
@@ -0,0 +1,15 @@
+package it.devchallenge.excel.repository;
+
+import it.devchallenge.excel.model.CellEntity;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertCallback;
+import org.springframework.stereotype.Component;
+
+@Component
+public class CellKeysCallback implements BeforeConvertCallback<CellEntity> {
+    @Override
+    public CellEntity onBeforeConvert(CellEntity cell, String collection) {
+        cell.setSheetKey(CellEntity.normalize(cell.getSheetName()));
+        cell.setNameKey(CellEntity.normalize(cell.getName()));
+        return cell;
+    }
+}
@@ -0,0 +1,79 @@
+package it.devchallenge.excel.repository;
+
+import it.devchallenge.excel.model.CellEntity;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Fills sheetKey and nameKey of cells stored before the keys were added, so indexed lookups find them too.
+ * Keys are computed by {@link CellEntity#normalize} rather than by Mongo, which lower-cases only ASCII letters.
+ * Runs once in the background after the start, cells stored meanwhile already have their keys.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class CellKeysMigration {
+    private static final int BATCH_SIZE = 1000;
+
+    private final MongoTemplate mongoTemplate;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        // doesn't hold up the start waiting for Mongo
+        Thread migration = new Thread(this::migrateStoredCells, "cell-keys-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    private void migrateStoredCells() {
+        try {
+            long migrated = migrate();
+            if (migrated > 0) {
+                log.info("Filled keys of {} stored cells", migrated);
+            }
+        } catch (DataAccessException e) {
+            // the application starts without a running Mongo, the cells are migrated on the next start
+            log.warn("Failed to fill keys of stored cells", e);
+        }
+    }
+
+    /**
+     * @return number of cells updated
+     */
+    public long migrate() {
+        Query query = Query.query(new Criteria().orOperator(
+                        Criteria.where("sheetKey").exists(false), Criteria.where("nameKey").exists(false)))
+                .cursorBatchSize(BATCH_SIZE);
+        query.fields().include("name", "sheetName");
+        long migrated = 0;
+        try (Stream<CellEntity> cells = mongoTemplate.stream(query, CellEntity.class)) {
+            Iterator<CellEntity> iterator = cells.iterator();
+            while (iterator.hasNext()) {
+                BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, CellEntity.class);
+                int batch = 0;
+                while (batch < BATCH_SIZE && iterator.hasNext()) {
+                    CellEntity cell = iterator.next();
+                    operations.updateOne(Query.query(Criteria.where("_id").is(cell.getId())), new Update()
+                            .set("sheetKey", CellEntity.normalize(cell.getSheetName()))
+                            .set("nameKey", CellEntity.normalize(cell.getName())));
+                    batch++;
+                }
+                operations.execute();
+                migrated += batch;
+            }
+        }
+        return migrated;
+    }
+}
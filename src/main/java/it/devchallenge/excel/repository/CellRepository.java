@@ -4,13 +4,19 @@ import it.devchallenge.excel.model.CellEntity;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.mongodb.repository.Query;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
-public interface CellRepository extends MongoRepository<CellEntity, UUID> {
+public interface CellRepository extends MongoRepository<CellEntity, UUID>, CellRepositoryCustom {
     Optional<CellEntity> findBySheetNameIgnoreCaseAndNameIgnoreCase(String sheetName, String cellName);
     List<CellEntity> findAllBySheetNameIgnoreCase(String sheetName);
+    List<CellEntity> findAllBySheetKey(String sheetKey);
+    long countBySheetKey(String sheetKey);
+    List<CellEntity> findAllBySheetKeyAndVersionGreaterThan(String sheetKey, long version);
+    List<CellEntity> findAllBySheetKeyAndNameKeyIn(String sheetKey, Collection<String> nameKeys);
+    boolean existsBySheetKey(String sheetKey);
 
     @Query(value = "{'value': { $regex: '^=.*(" + "?1" + ").*', $options: 'i' }, 'sheetName': {'$eq': '?0'}}")
     List<CellEntity> findByValueContainingInput(String sheetName, String input);
@@ -0,0 +1,25 @@
+package it.devchallenge.excel.repository;
+
+import it.devchallenge.excel.model.CellEntity;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+public interface CellRepositoryCustom {
+    /**
+     * Returns up to {@code limit} cells of the sheet ordered by normalized name.
+     * Only {@code name}, {@code nameKey} and the requested {@code fields} are loaded.
+     */
+    List<CellEntity> findPage(String sheetName, String prefix, String afterNameKey, int limit, Set<String> fields);
+
+    /**
+     * Streams all cells of the sheet from a Mongo cursor ordered by normalized name, the stream has to be closed.
+     */
+    Stream<CellEntity> streamSheet(String sheetName, int batchSize);
+
+    /**
+     * Inserts or replaces all cells with a single unordered bulk write. Cells stored with a newer version are kept.
+     */
+    void bulkUpsert(List<CellEntity> cells);
+}
@@ -0,0 +1,102 @@
+package it.devchallenge.excel.repository;
+
+import it.devchallenge.excel.model.CellEntity;
+import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@RequiredArgsConstructor
+public class CellRepositoryCustomImpl implements CellRepositoryCustom {
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final IndexCreator indexCreator;
+
+    @Override
+    public List<CellEntity> findPage(String sheetName, String prefix, String afterNameKey, int limit, Set<String> fields) {
+        indexCreator.ensureIndexes(CellEntity.class);
+        Criteria criteria = Criteria.where("sheetKey").is(CellEntity.normalize(sheetName));
+
+        // prefix and cursor both become bounds on nameKey, so the query stays a single index range scan
+        String prefixKey = CellEntity.normalize(prefix);
+        if (afterNameKey != null || prefixKey != null) {
+            Criteria nameKey = criteria.and("nameKey");
+            if (afterNameKey != null && (prefixKey == null || afterNameKey.compareTo(prefixKey) >= 0)) {
+                nameKey.gt(afterNameKey);
+            } else {
+                nameKey.gte(prefixKey);
+            }
+            if (prefixKey != null) {
+                nameKey.lt(prefixKey + Character.MAX_VALUE);
+            }
+        }
+
+        Query query = Query.query(criteria)
+                .with(Sort.by(Sort.Direction.ASC, "nameKey"))
+                .limit(limit);
+        query.fields().include("name", "nameKey");
+        if (fields.contains("value") || fields.contains("result")) {
+            query.fields().include("value");
+        }
+        if (fields.contains("result")) {
+            query.fields().include("type", "sheetName");
+        }
+        return mongoTemplate.find(query, CellEntity.class);
+    }
+
+    @Override
+    public Stream<CellEntity> streamSheet(String sheetName, int batchSize) {
+        indexCreator.ensureIndexes(CellEntity.class);
+        Query query = Query.query(Criteria.where("sheetKey").is(CellEntity.normalize(sheetName)))
+                .with(Sort.by(Sort.Direction.ASC, "nameKey"))
+                .cursorBatchSize(batchSize);
+        return mongoTemplate.stream(query, CellEntity.class);
+    }
+
+    @Override
+    public void bulkUpsert(List<CellEntity> cells) {
+        indexCreator.ensureIndexes(CellEntity.class);
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, CellEntity.class);
+        for (CellEntity cell : cells) {
+            cell.setSheetKey(CellEntity.normalize(cell.getSheetName()));
+            cell.setNameKey(CellEntity.normalize(cell.getName()));
+            // a cell already stored with a newer version by another instance is kept, its upsert fails on the id
+            operations.replaceOne(Query.query(Criteria.where("_id").is(cell.getId()).and("version").not().gt(cell.getVersion())),
+                    cell, FindAndReplaceOptions.options().upsert());
+        }
+        try {
+            operations.execute();
+        } catch (BulkOperationException e) {
+            if (!supersededOnly(cells, e)) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return true if every failed upsert was excluded by the version filter, i.e. its cell is stored with a newer version
+     */
+    private boolean supersededOnly(List<CellEntity> cells, BulkOperationException e) {
+        if (e.getErrors().stream().anyMatch(error -> error.getCode() != DUPLICATE_KEY)) {
+            return false;
+        }
+        List<CellEntity> failed = e.getErrors().stream().map(error -> cells.get(error.getIndex())).toList();
+        Query query = Query.query(Criteria.where("_id").in(failed.stream().map(CellEntity::getId).toList()));
+        query.fields().include("version");
+        Map<UUID, Long> storedVersions = mongoTemplate.find(query, CellEntity.class).stream()
+                .collect(Collectors.toMap(CellEntity::getId, CellEntity::getVersion));
+        return failed.stream().allMatch(cell -> storedVersions.getOrDefault(cell.getId(), Long.MIN_VALUE) > cell.getVersion());
+    }
+}
@@ -0,0 +1,30 @@
+package it.devchallenge.excel.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates the indexes declared on a document class on first use rather than on startup,
+ * so the application starts without a running Mongo.
+ */
+@Component
+@RequiredArgsConstructor
+public class IndexCreator {
+    private final MongoTemplate mongoTemplate;
+    private final Set<Class<?>> indexed = ConcurrentHashMap.newKeySet();
+
+    public void ensureIndexes(Class<?> documentClass) {
+        if (!indexed.contains(documentClass)) {
+            var indexOps = mongoTemplate.indexOps(documentClass);
+            new MongoPersistentEntityIndexResolver(mongoTemplate.getConverter().getMappingContext())
+                    .resolveIndexFor(documentClass)
+                    .forEach(indexOps::ensureIndex);
+            indexed.add(documentClass);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package it.devchallenge.excel.repository;
+
+import it.devchallenge.excel.model.SheetDependencyEntity;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface SheetDependencyRepository extends MongoRepository<SheetDependencyEntity, String> {
+    List<SheetDependencyEntity> findAllByReferencedSheetKeyIn(Collection<String> referencedSheetKeys);
+}
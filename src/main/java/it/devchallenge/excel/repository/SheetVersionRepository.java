@@ -0,0 +1,7 @@
+package it.devchallenge.excel.repository;
+
+import it.devchallenge.excel.model.SheetVersionEntity;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface SheetVersionRepository extends MongoRepository<SheetVersionEntity, String>, SheetVersionRepositoryCustom {
+}
@@ -0,0 +1,20 @@
+package it.devchallenge.excel.repository;
+
+public interface SheetVersionRepositoryCustom {
+    /**
+     * Atomically increments the reserved number of the sheet, creating its version if needed.
+     *
+     * @return the reserved number
+     */
+    long reserve(String sheetKey);
+
+    /**
+     * Atomically increments the committed number of the sheet.
+     */
+    void commit(String sheetKey);
+
+    /**
+     * Atomically increments both numbers of the sheet, like a batch reserved and committed at once.
+     */
+    void bump(String sheetKey);
+}
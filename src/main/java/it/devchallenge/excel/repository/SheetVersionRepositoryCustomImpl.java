@@ -0,0 +1,38 @@
+package it.devchallenge.excel.repository;
+
+import it.devchallenge.excel.model.SheetVersionEntity;
+import lombok.RequiredArgsConstructor;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+@RequiredArgsConstructor
+public class SheetVersionRepositoryCustomImpl implements SheetVersionRepositoryCustom {
+    private final MongoTemplate mongoTemplate;
+
+    @Override
+    public long reserve(String sheetKey) {
+        return increment(sheetKey, "reserved", "committed").getReserved();
+    }
+
+    @Override
+    public void commit(String sheetKey) {
+        increment(sheetKey, "committed", "reserved");
+    }
+
+    @Override
+    public void bump(String sheetKey) {
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(sheetKey)),
+                new Update().inc("reserved", 1).inc("committed", 1), SheetVersionEntity.class);
+    }
+
+    private SheetVersionEntity increment(String sheetKey, String field, String other) {
+        // the other counter is incremented by 0 so that the upserted document has both
+        return mongoTemplate.findAndModify(Query.query(Criteria.where("_id").is(sheetKey)),
+                new Update().inc(field, 1).inc(other, 0),
+                FindAndModifyOptions.options().upsert(true).returnNew(true),
+                SheetVersionEntity.class);
+    }
+}
@@ -0,0 +1,188 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import it.devchallenge.excel.exceptions.OverloadedException;
+import it.devchallenge.excel.model.CellEntity;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds concurrent recalculation work. A write costs one permit per cell it recalculates and takes permits
+ * of its sheet and of the whole node, waiting in line at most the write timeout. Reads have their own lanes,
+ * so they never wait behind recalculations: point reads of a few cells, and scans that evaluate a whole sheet or many
+ * scenarios, so a burst of scans can't take the permits cheap reads need. A sheet's semaphore only exists while writes to the sheet hold or wait
+ * for its permits, so memory doesn't grow with the number of sheets ever written.
+ */
+@Slf4j
+@Component
+public class AdmissionController {
+    private final int sheetPermits;
+    private final Semaphore globalWrites;
+    private final Semaphore reads;
+    private final Semaphore scans;
+    private final Map<String, SheetLane> sheetWrites = new ConcurrentHashMap<>();
+    private final Duration writeTimeout;
+    private final Duration readTimeout;
+    private final Duration retryAfter;
+    private final AtomicInteger waitingWrites = new AtomicInteger();
+    private final AtomicInteger waitingReads = new AtomicInteger();
+    private final AtomicInteger waitingScans = new AtomicInteger();
+    private final Counter rejectedWrites;
+    private final Counter rejectedReads;
+    private final Counter rejectedScans;
+    private final DistributionSummary writeCost;
+
+    public AdmissionController(MeterRegistry meterRegistry,
+                               @Value("${sheet.admission.global-permits:512}") int globalPermits,
+                               @Value("${sheet.admission.sheet-permits:128}") int sheetPermits,
+                               @Value("${sheet.admission.read-permits:256}") int readPermits,
+                               @Value("${sheet.admission.scan-permits:32}") int scanPermits,
+                               @Value("${sheet.admission.write-timeout:2s}") Duration writeTimeout,
+                               @Value("${sheet.admission.read-timeout:500ms}") Duration readTimeout,
+                               @Value("${sheet.admission.retry-after:1s}") Duration retryAfter) {
+        // a single write may never need more permits than its sheet has
+        this.sheetPermits = Math.min(sheetPermits, globalPermits);
+        this.globalWrites = new Semaphore(globalPermits, true);
+        this.reads = new Semaphore(readPermits, true);
+        this.scans = new Semaphore(scanPermits, true);
+        this.writeTimeout = writeTimeout;
+        this.readTimeout = readTimeout;
+        this.retryAfter = retryAfter;
+        this.rejectedWrites = meterRegistry.counter("sheet.admission.rejected", "lane", "write");
+        this.rejectedReads = meterRegistry.counter("sheet.admission.rejected", "lane", "read");
+        this.rejectedScans = meterRegistry.counter("sheet.admission.rejected", "lane", "scan");
+        this.writeCost = meterRegistry.summary("sheet.admission.write.cost");
+        meterRegistry.gauge("sheet.admission.waiting", Tags.of("lane", "write"), waitingWrites);
+        meterRegistry.gauge("sheet.admission.waiting", Tags.of("lane", "read"), waitingReads);
+        meterRegistry.gauge("sheet.admission.waiting", Tags.of("lane", "scan"), waitingScans);
+        meterRegistry.gauge("sheet.admission.available", Tags.of("lane", "write"), globalWrites, Semaphore::availablePermits);
+        meterRegistry.gauge("sheet.admission.available", Tags.of("lane", "read"), reads, Semaphore::availablePermits);
+        meterRegistry.gauge("sheet.admission.available", Tags.of("lane", "scan"), scans, Semaphore::availablePermits);
+        meterRegistry.gauge("sheet.admission.sheets", sheetWrites, Map::size);
+    }
+
+    /**
+     * @param cost number of cells the write recalculates
+     * @throws OverloadedException if the permits aren't available within the write timeout
+     */
+    public Permit admitWrite(String sheetName, int cost) {
+        int permits = Math.max(1, Math.min(cost, sheetPermits));
+        writeCost.record(cost);
+        String sheetKey = CellEntity.normalize(sheetName);
+        Semaphore sheet = enterSheet(sheetKey);
+        long deadline = System.nanoTime() + writeTimeout.toNanos();
+
+        waitingWrites.incrementAndGet();
+        try {
+            // the sheet is taken first, so a hot sheet doesn't hold permits of the other sheets while waiting
+            if (!acquire(sheet, permits, deadline)) {
+                leaveSheet(sheetKey);
+                throw reject(rejectedWrites, "Sheet %s is overloaded".formatted(sheetName));
+            }
+            if (!acquire(globalWrites, permits, deadline)) {
+                sheet.release(permits);
+                leaveSheet(sheetKey);
+                throw reject(rejectedWrites, "Too many recalculations");
+            }
+        } finally {
+            waitingWrites.decrementAndGet();
+        }
+        return () -> {
+            globalWrites.release(permits);
+            sheet.release(permits);
+            leaveSheet(sheetKey);
+        };
+    }
+
+    /**
+     * @return semaphore of the sheet, created if no other write holds or waits for its permits
+     */
+    private Semaphore enterSheet(String sheetKey) {
+        return sheetWrites.compute(sheetKey, (key, lane) -> {
+            SheetLane entered = lane == null ? new SheetLane(new Semaphore(sheetPermits, true)) : lane;
+            entered.writes++;
+            return entered;
+        }).permits;
+    }
+
+    /**
+     * Drops the semaphore of the sheet once the last write using it is done, all its permits are free by then.
+     */
+    private void leaveSheet(String sheetKey) {
+        sheetWrites.computeIfPresent(sheetKey, (key, lane) -> --lane.writes == 0 ? null : lane);
+    }
+
+    /**
+     * Admits a point read, i.e. of a single cell or a list of cells.
+     *
+     * @throws OverloadedException if no read permit is available within the read timeout
+     */
+    public Permit admitRead() {
+        return admit(reads, waitingReads, rejectedReads, "Too many reads");
+    }
+
+    /**
+     * Admits a read evaluating a whole sheet, a page of it or a batch of scenarios.
+     *
+     * @throws OverloadedException if no scan permit is available within the read timeout
+     */
+    public Permit admitScan() {
+        return admit(scans, waitingScans, rejectedScans, "Too many sheet scans");
+    }
+
+    private Permit admit(Semaphore lane, AtomicInteger waiting, Counter rejected, String message) {
+        waiting.incrementAndGet();
+        try {
+            if (!acquire(lane, 1, System.nanoTime() + readTimeout.toNanos())) {
+                throw reject(rejected, message);
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+        return lane::release;
+    }
+
+    private static boolean acquire(Semaphore semaphore, int permits, long deadline) {
+        try {
+            return semaphore.tryAcquire(permits, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private OverloadedException reject(Counter rejected, String message) {
+        rejected.increment();
+        log.debug("Rejected request: {}", message);
+        return new OverloadedException(message, retryAfter);
+    }
+
+    private static class SheetLane {
+        private final Semaphore permits;
+        // writes holding or waiting for the permits, only changed while the map entry is locked
+        private int writes;
+
+        private SheetLane(Semaphore permits) {
+            this.permits = permits;
+        }
+    }
+
+    /**
+     * Admitted work, releases its permits when closed.
+     */
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,204 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.model.CellReference;
+import it.devchallenge.excel.repository.CellRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Group commit for cell writes: writes arriving within the batch window are saved with one bulk write
+ * and every caller returns only after its batch is stored and published to the sheet snapshots.
+ */
+@Slf4j
+@Component
+public class CellWriteBatcher {
+    private final CellRepository cellRepository;
+    private final SheetVersions sheetVersions;
+    private final SheetSnapshots sheetSnapshots;
+    private final Duration batchWindow;
+    private final int maxBatchSize;
+    private final Duration writeTimeout;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final DistributionSummary batchSize;
+    private final Timer commitLatency;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public CellWriteBatcher(CellRepository cellRepository,
+                            SheetVersions sheetVersions,
+                            SheetSnapshots sheetSnapshots,
+                            MeterRegistry meterRegistry,
+                            @Value("${sheet.write.batch-window:5ms}") Duration batchWindow,
+                            @Value("${sheet.write.max-batch-size:256}") int maxBatchSize,
+                            @Value("${sheet.write.timeout:10s}") Duration writeTimeout) {
+        this.cellRepository = cellRepository;
+        this.sheetVersions = sheetVersions;
+        this.sheetSnapshots = sheetSnapshots;
+        this.batchWindow = batchWindow;
+        this.maxBatchSize = maxBatchSize;
+        this.writeTimeout = writeTimeout;
+        this.batchSize = meterRegistry.summary("sheet.write.batch.size");
+        this.commitLatency = meterRegistry.timer("sheet.write.commit.latency");
+        meterRegistry.gaugeCollectionSize("sheet.write.pending", Tags.empty(), queue);
+
+        this.flusher = new Thread(this::run, "cell-write-batcher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @throws IllegalStateException if the batcher is closed or the batch isn't stored within the write timeout,
+     *                               in the latter case the cells may still be stored later
+     */
+    public void save(CellEntity... cells) {
+        if (!running) {
+            throw new IllegalStateException("Cell write batcher is closed");
+        }
+        var write = new PendingWrite(List.of(cells), new CompletableFuture<>());
+        queue.add(write);
+        try {
+            write.stored().get(writeTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Failed to store cells", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Cells weren't stored within %s".formatted(writeTimeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while storing cells", e);
+        }
+    }
+
+    /**
+     * Stores cells that make a batch on their own right away on the calling thread, e.g. imported cells.
+     * Cells are stamped with their sheet version, so snapshots keep the newest value whatever batch is published first.
+     */
+    public void saveAll(List<CellEntity> cells) {
+        List<CellEntity> stored = new ArrayList<>(cells);
+        commitLatency.record(() -> store(stored));
+        sheetSnapshots.publish(stored);
+        batchSize.record(stored.size());
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        running = false;
+        flusher.interrupt();
+        flusher.join();
+        List<PendingWrite> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            flush(remaining);
+        }
+    }
+
+    private void run() {
+        try {
+            batchWrites();
+        } finally {
+            if (running) {
+                // the flusher died, writes waiting for it would never be stored
+                running = false;
+                List<PendingWrite> remaining = new ArrayList<>();
+                queue.drainTo(remaining);
+                remaining.forEach(write -> write.stored().completeExceptionally(
+                        new IllegalStateException("Cell write batcher stopped")));
+                log.error("Cell write batcher stopped, {} writes failed", remaining.size());
+            }
+        }
+    }
+
+    private void batchWrites() {
+        while (running) {
+            try {
+                PendingWrite first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<PendingWrite> batch = new ArrayList<>();
+                batch.add(first);
+                long deadline = System.nanoTime() + batchWindow.toNanos();
+                while (batch.size() < maxBatchSize) {
+                    PendingWrite next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        // the same cell may be written several times in one window, only the last write is stored, under the id of
+        // the first one: writes creating the same cell come with different random ids and would store it twice
+        Map<String, CellEntity> cells = new LinkedHashMap<>();
+        batch.forEach(write -> write.cells().forEach(cell -> {
+            String key = CellReference.of(cell).key();
+            CellEntity previous = cells.remove(key);
+            if (previous != null) {
+                cell.setId(previous.getId());
+            }
+            cells.put(key, cell);
+        }));
+        List<CellEntity> stored = new ArrayList<>(cells.values());
+        try {
+            commitLatency.record(() -> store(stored));
+            // batches are published in the order they are stored, so snapshots never go back to an older value
+            sheetSnapshots.publish(stored);
+            batchSize.record(cells.size());
+            log.debug("Stored {} cells of {} writes", cells.size(), batch.size());
+            batch.forEach(write -> write.stored().complete(null));
+        } catch (Throwable e) {
+            // the writers are released whatever failed, the flusher keeps going with the next batch
+            log.error("Failed to store {} cells", cells.size(), e);
+            batch.forEach(write -> write.stored().completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Stamps the cells with the next version of their sheets and stores them, the versions are committed
+     * even if the write fails, otherwise other instances would keep waiting for the batch.
+     */
+    private void store(List<CellEntity> cells) {
+        Map<String, List<CellEntity>> cellsBySheet = new LinkedHashMap<>();
+        cells.forEach(cell -> cellsBySheet.computeIfAbsent(CellEntity.normalize(cell.getSheetName()), key -> new ArrayList<>())
+                .add(cell));
+        List<String> reserved = new ArrayList<>();
+        try {
+            cellsBySheet.forEach((sheetKey, sheetCells) -> {
+                long version = sheetVersions.reserve(sheetKey);
+                reserved.add(sheetKey);
+                sheetCells.forEach(cell -> cell.setVersion(version));
+            });
+            cellRepository.bulkUpsert(cells);
+        } finally {
+            reserved.forEach(sheetVersions::commit);
+        }
+    }
+
+    private record PendingWrite(List<CellEntity> cells, CompletableFuture<Void> stored) {
+    }
+}
@@ -0,0 +1,267 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.devchallenge.excel.dto.ImportResponse;
+import it.devchallenge.excel.exceptions.CalculationException;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.model.CellReference;
+import it.devchallenge.excel.repository.CellRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Imports cells from CSV without the per-cell validation of {@link SheetService#addCell}: records are read one at
+ * a time and stored in batches, then formulas of the whole sheet and the formulas of other sheets using its cells
+ * are evaluated once, batch by batch, and the ones that fail are reported. Memory use depends on the batch size and
+ * on the number of cells kept by the evaluation memo, not on the size of the file.
+ */
+@Slf4j
+@Service
+public class CsvImportService {
+    private static final int MAX_FIELD_LENGTH = 64 * 1024;
+
+    private final CellRepository cellRepository;
+    private final CellWriteBatcher cellWriteBatcher;
+    private final SheetVersions sheetVersions;
+    private final ReadCoalescer readCoalescer;
+    private final SheetDependencies sheetDependencies;
+    private final AdmissionController admissionController;
+    private final int batchSize;
+    private final int maxErrors;
+    private final int memoCells;
+    private final Counter importedCells;
+
+    @Autowired
+    public CsvImportService(CellRepository cellRepository, CellWriteBatcher cellWriteBatcher,
+                            SheetVersions sheetVersions, ReadCoalescer readCoalescer,
+                            SheetDependencies sheetDependencies, AdmissionController admissionController,
+                            MeterRegistry meterRegistry,
+                            @Value("${sheet.import.batch-size:1000}") int batchSize,
+                            @Value("${sheet.import.max-errors:100}") int maxErrors,
+                            @Value("${sheet.import.memo-cells:100000}") int memoCells) {
+        this.cellRepository = cellRepository;
+        this.cellWriteBatcher = cellWriteBatcher;
+        this.sheetVersions = sheetVersions;
+        this.readCoalescer = readCoalescer;
+        this.sheetDependencies = sheetDependencies;
+        this.admissionController = admissionController;
+        this.batchSize = batchSize;
+        this.maxErrors = maxErrors;
+        this.memoCells = memoCells;
+        this.importedCells = meterRegistry.counter("sheet.import.cells");
+    }
+
+    public ImportResponse importCsv(String sheetName, Reader csv, Layout layout) throws IOException {
+        long start = System.nanoTime();
+        var sheetImport = new SheetImport(sheetName);
+        // a blank line of a grid is an empty row, the rows after it keep their numbers
+        CsvReader reader = new CsvReader(csv, MAX_FIELD_LENGTH, layout == Layout.CELLS);
+        try {
+            List<String> record;
+            long row = 0;
+            while ((record = reader.next()) != null) {
+                row++;
+                switch (layout) {
+                    case CELLS -> readCell(sheetImport, record, row, reader.getLine());
+                    case GRID -> readRow(sheetImport, record, row);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // the rest of the file can't be read, the cells read so far are still imported
+            sheetImport.fail(e.getMessage());
+        }
+        sheetImport.flush();
+
+        // results of the sheets using the imported cells change as well
+        readCoalescer.invalidate(CellEntity.normalize(sheetName));
+        for (String sheetKey : sheetDependencies.dependentSheets(sheetName)) {
+            sheetVersions.bump(sheetKey);
+            readCoalescer.invalidate(sheetKey);
+        }
+        validate(sheetImport);
+
+        long nanos = Math.max(1, System.nanoTime() - start);
+        log.info("Imported {} cells to sheet {} in {} ms, {} failed", sheetImport.imported, sheetName,
+                nanos / 1_000_000, sheetImport.failed);
+        return ImportResponse.builder()
+                .imported(sheetImport.imported)
+                .failed(sheetImport.failed)
+                .errors(sheetImport.errors)
+                .millis(nanos / 1_000_000)
+                .cellsPerSecond(sheetImport.imported * 1_000_000_000 / nanos)
+                .build();
+    }
+
+    private void readCell(SheetImport sheetImport, List<String> record, long row, long line) {
+        if (row == 1 && record.size() == 2 && record.get(0).equalsIgnoreCase("name")
+                && record.get(1).equalsIgnoreCase("value")) {
+            return;
+        }
+        if (record.size() != 2 || record.get(0).isBlank()) {
+            sheetImport.fail("Line %d: expected name,value".formatted(line));
+            return;
+        }
+        sheetImport.add(record.get(0).trim(), record.get(1));
+    }
+
+    private void readRow(SheetImport sheetImport, List<String> record, long row) {
+        for (int column = 0; column < record.size(); column++) {
+            if (!record.get(column).isEmpty()) {
+                sheetImport.add(columnName(column) + row, record.get(column));
+            }
+        }
+    }
+
+    /**
+     * @return spreadsheet name of the zero-based column: A, B, ..., Z, AA, AB, ...
+     */
+    static String columnName(int column) {
+        StringBuilder name = new StringBuilder();
+        for (int n = column + 1; n > 0; n = (n - 1) / 26) {
+            name.append((char) ('A' + (n - 1) % 26));
+        }
+        return name.reverse().toString();
+    }
+
+    /**
+     * Evaluates every formula of the sheet once the whole file is stored, so formulas may use cells defined
+     * later in the file. Each batch is evaluated with a scan permit, like whole-sheet reads. All batches share one
+     * memo, so a cell used by formulas of many batches is loaded and filled once, unless more than memo-cells
+     * other cells were used since.
+     */
+    private void validate(SheetImport sheetImport) {
+        String sheetName = sheetImport.sheetName;
+        EvaluationContext context = new EvaluationContext(sheetName, cellRepository, memoCells);
+        try (Stream<CellEntity> sheetCells = cellRepository.streamSheet(sheetName, batchSize)) {
+            Iterator<CellEntity> iterator = sheetCells.iterator();
+            List<CellEntity> batch = new ArrayList<>(batchSize);
+            while (iterator.hasNext()) {
+                batch.add(iterator.next());
+                if (batch.size() == batchSize || !iterator.hasNext()) {
+                    try (var permit = admissionController.admitScan()) {
+                        validateBatch(sheetImport, context, batch);
+                    }
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private void validateBatch(SheetImport sheetImport, EvaluationContext context, List<CellEntity> batch) {
+        batch.forEach(context::offer);
+        List<CellEntity> formulas = batch.stream()
+                .filter(cell -> cell.getType() == CellEntity.CellType.FORMULA)
+                .toList();
+        context.prefetch(formulas.stream()
+                .flatMap(cell -> ResultCalculator.references(cell.getValue()).stream())
+                .toList());
+        formulas.forEach(cell -> evaluate(sheetImport, context, cell, cell.getName()));
+
+        // a dependent using several imported cells is evaluated only once
+        List<CellEntity> dependents = sheetDependencies.dependents(sheetImport.sheetName,
+                        batch.stream().map(CellEntity::getName).toList()).stream()
+                .filter(cell -> sheetImport.validatedDependents.add(CellReference.of(cell).key()))
+                .toList();
+        if (dependents.isEmpty()) {
+            return;
+        }
+        dependents.forEach(context::offer);
+        context.prefetch(dependents.stream()
+                .flatMap(cell -> ResultCalculator.references(cell.getValue()).stream()
+                        .map(reference -> CellReference.parse(reference, cell.getSheetName()).key()))
+                .toList());
+        dependents.forEach(cell -> evaluate(sheetImport, context, cell,
+                cell.getSheetName() + CellReference.SHEET_SEPARATOR + cell.getName()));
+    }
+
+    private void evaluate(SheetImport sheetImport, EvaluationContext context, CellEntity cell, String cellName) {
+        try {
+            new ResultCalculator(cell, context).calculateFormula();
+        } catch (CalculationException e) {
+            sheetImport.fail("Cell %s: %s".formatted(cellName, e.getMessage()));
+        }
+    }
+
+    public enum Layout {
+        // one name,value record per cell
+        CELLS,
+        // one record per row, cells are named by column and row, e.g. B3
+        GRID;
+
+        public static Layout of(String layout) {
+            return valueOf(layout.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private class SheetImport {
+        private final String sheetName;
+        // the last value of a cell repeated within a batch wins
+        private final Map<String, CellEntity> batch = new LinkedHashMap<>();
+        private final List<String> errors = new ArrayList<>();
+        private final Set<String> validatedDependents = new HashSet<>();
+        private long imported;
+        private long failed;
+
+        private SheetImport(String sheetName) {
+            this.sheetName = sheetName;
+        }
+
+        private void add(String cellName, String value) {
+            batch.put(CellEntity.normalize(cellName), CellEntity.builder()
+                    .name(cellName)
+                    .sheetName(sheetName)
+                    .value(value)
+                    .type(SheetService.cellType(value))
+                    .build());
+            if (batch.size() == batchSize) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            // cells already in the sheet keep their ids, so they are replaced instead of duplicated
+            Map<String, CellEntity> stored = cellRepository.findAllBySheetKeyAndNameKeyIn(
+                            CellEntity.normalize(sheetName), batch.keySet()).stream()
+                    .collect(Collectors.toMap(cell -> CellEntity.normalize(cell.getName()), Function.identity(),
+                            (first, second) -> first));
+            List<CellEntity> cells = new ArrayList<>(batch.values());
+            cells.forEach(cell -> {
+                CellEntity existing = stored.get(CellEntity.normalize(cell.getName()));
+                if (existing != null) {
+                    cell.setId(existing.getId());
+                }
+            });
+            // the batch recalculates nothing, formulas are validated after the load
+            try (var permit = admissionController.admitWrite(sheetName, 1)) {
+                cellWriteBatcher.saveAll(cells);
+            }
+            for (CellEntity cell : cells) {
+                CellEntity existing = stored.get(CellEntity.normalize(cell.getName()));
+                sheetDependencies.update(cell, existing == null ? null : existing.getValue());
+            }
+            imported += cells.size();
+            importedCells.increment(cells.size());
+            batch.clear();
+        }
+
+        private void fail(String error) {
+            failed++;
+            if (errors.size() < maxErrors) {
+                errors.add(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package it.devchallenge.excel.service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads RFC 4180 records one at a time: fields may be quoted, quoted fields may contain separators, line breaks
+ * and doubled quotes. Only the current record is kept in memory. Blank lines are either skipped or read as records
+ * without fields, e.g. empty rows of a grid.
+ */
+class CsvReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader reader;
+    private final int maxFieldLength;
+    private final boolean skipBlankLines;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder field = new StringBuilder();
+    private int position;
+    private int limit;
+    private long line = 1;
+    private long recordLine;
+
+    CsvReader(Reader reader, int maxFieldLength, boolean skipBlankLines) {
+        this.reader = reader;
+        this.maxFieldLength = maxFieldLength;
+        this.skipBlankLines = skipBlankLines;
+    }
+
+    /**
+     * @return fields of the next record, null at the end of the input
+     * @throws IllegalArgumentException if the input isn't valid CSV, the rest of it can't be read
+     */
+    List<String> next() throws IOException {
+        int c = read();
+        while (skipBlankLines && (c == '\r' || c == '\n')) {
+            skipLineBreak(c);
+            c = read();
+        }
+        if (c == -1) {
+            return null;
+        }
+        recordLine = line;
+        if (c == '\r' || c == '\n') {
+            skipLineBreak(c);
+            return List.of();
+        }
+        List<String> fields = new ArrayList<>();
+        while (true) {
+            field.setLength(0);
+            if (c == '"') {
+                c = readQuoted();
+            } else {
+                while (c != ',' && c != '\r' && c != '\n' && c != -1) {
+                    if (c == '"') {
+                        throw new IllegalArgumentException("Line %d: quote inside an unquoted field".formatted(line));
+                    }
+                    append(c);
+                    c = read();
+                }
+            }
+            fields.add(field.toString());
+            if (c == ',') {
+                c = read();
+                continue;
+            }
+            if (c != -1) {
+                skipLineBreak(c);
+            }
+            return fields;
+        }
+    }
+
+    /**
+     * @return line on which the last record returned by {@link #next()} started
+     */
+    long getLine() {
+        return recordLine;
+    }
+
+    private int readQuoted() throws IOException {
+        long start = line;
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw new IllegalArgumentException("Line %d: quoted field isn't closed".formatted(start));
+            }
+            if (c == '"') {
+                c = read();
+                if (c != '"') {
+                    if (c != ',' && c != '\r' && c != '\n' && c != -1) {
+                        throw new IllegalArgumentException("Line %d: text after a quoted field".formatted(line));
+                    }
+                    return c;
+                }
+            } else if (c == '\n') {
+                line++;
+            }
+            append(c);
+        }
+    }
+
+    private void append(int c) {
+        if (field.length() == maxFieldLength) {
+            throw new IllegalArgumentException("Line %d: field is longer than %d characters".formatted(line, maxFieldLength));
+        }
+        field.append((char) c);
+    }
+
+    private void skipLineBreak(int c) throws IOException {
+        line++;
+        if (c == '\r' && read() != '\n' && position > 0) {
+            // the character after a lone \r belongs to the next record
+            position--;
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = reader.read(buffer, 0, BUFFER_SIZE);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+}
@@ -0,0 +1,219 @@
+package it.devchallenge.excel.service;
+
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.model.CellReference;
+import it.devchallenge.excel.repository.CellRepository;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+
+/**
+ * Memo table shared by all {@link ResultCalculator}s evaluating cells of one sheet:
+ * every cell is loaded once and every formula is filled once, no matter how many cells reference it.
+ * Cells of other sheets are kept in the same table under their qualified {@link CellReference#key()}.
+ * Contexts created with {@link SheetSnapshots} read every sheet that has a loaded snapshot from the version taken
+ * at its first use, so writes committed during the evaluation are not seen half-applied. Other sheets are read
+ * from the repository. A context may be limited to a number of cells, then the least recently used cells and their
+ * filled formulas are dropped first and loaded again if they are used later.
+ */
+@Slf4j
+public class EvaluationContext {
+    private final String sheetName;
+    private final CellRepository cellRepository;
+    private final Map<String, Optional<CellEntity>> cells;
+    private final Map<String, List<String>> filledFormulas;
+    private final Set<String> filling = new HashSet<>();
+    private final SheetSnapshots sheetSnapshots;
+    private final Map<String, SheetSnapshot> snapshots = new HashMap<>();
+    private final EvaluationTrace trace;
+
+    public EvaluationContext(String sheetName, CellRepository cellRepository) {
+        this(sheetName, cellRepository, null, null);
+    }
+
+    public EvaluationContext(String sheetName, CellRepository cellRepository, SheetSnapshots sheetSnapshots,
+                             EvaluationTrace trace) {
+        this(sheetName, cellRepository, sheetSnapshots, trace, new HashMap<>(), new HashMap<>());
+    }
+
+    /**
+     * @param maxCells number of cells and of filled formulas kept at most
+     */
+    public EvaluationContext(String sheetName, CellRepository cellRepository, int maxCells) {
+        this(sheetName, cellRepository, null, null, lruMap(maxCells), lruMap(maxCells));
+    }
+
+    private EvaluationContext(String sheetName, CellRepository cellRepository, SheetSnapshots sheetSnapshots,
+                              EvaluationTrace trace, Map<String, Optional<CellEntity>> cells,
+                              Map<String, List<String>> filledFormulas) {
+        this.sheetName = sheetName;
+        this.cellRepository = cellRepository;
+        this.sheetSnapshots = sheetSnapshots;
+        this.trace = trace;
+        this.cells = cells;
+        this.filledFormulas = filledFormulas;
+    }
+
+    private static <V> Map<String, V> lruMap(int maxSize) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public String getSheetName() {
+        return sheetName;
+    }
+
+    /**
+     * @return the trace recording the evaluation, null if it isn't traced
+     */
+    EvaluationTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Makes the context use the given cell instead of the stored one.
+     */
+    public void put(CellEntity cell) {
+        String key = CellReference.of(cell).key();
+        cells.put(key, Optional.of(cell));
+        filledFormulas.remove(key);
+    }
+
+    /**
+     * Adds a cell read from the repository, unless the context already holds it and possibly its filled formula.
+     */
+    public void offer(CellEntity cell) {
+        String key = CellReference.of(cell).key();
+        if (cells.getOrDefault(key, Optional.empty()).isEmpty()) {
+            cells.put(key, Optional.of(cell));
+        }
+    }
+
+    /**
+     * Makes the context read the sheet from the given snapshot.
+     */
+    public void pin(String sheetName, SheetSnapshot snapshot) {
+        snapshots.put(CellEntity.normalize(sheetName), snapshot);
+    }
+
+    /**
+     * @return the snapshot the sheet is read from, null if the sheet is read from the repository
+     */
+    private SheetSnapshot snapshot(String sheetKey) {
+        if (sheetSnapshots == null) {
+            return null;
+        }
+        if (!snapshots.containsKey(sheetKey)) {
+            snapshots.put(sheetKey, sheetSnapshots.peek(sheetKey, trace));
+        }
+        return snapshots.get(sheetKey);
+    }
+
+    public Optional<CellEntity> getCell(String cellName) {
+        return getCell(CellReference.parse(cellName, sheetName));
+    }
+
+    public Optional<CellEntity> getCell(CellReference reference) {
+        if (trace == null) {
+            return cells.computeIfAbsent(reference.key(), key -> loadCell(reference));
+        }
+        long start = System.nanoTime();
+        String source = cells.containsKey(reference.key()) ? "cache"
+                : snapshot(reference.sheetKey()) != null ? "snapshot" : "storage";
+        Optional<CellEntity> cell = cells.computeIfAbsent(reference.key(), key -> loadCell(reference));
+        trace.lookup(reference, source, cell, System.nanoTime() - start);
+        return cell;
+    }
+
+    private Optional<CellEntity> loadCell(CellReference reference) {
+        SheetSnapshot snapshot = snapshot(reference.sheetKey());
+        if (snapshot != null) {
+            return snapshot.get(reference.cellName());
+        }
+        if (trace != null) {
+            trace.repositoryCall();
+        }
+        return cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(reference.sheetName(), reference.cellName());
+    }
+
+    /**
+     * Loads the cells and everything they transitively reference with one {@code $in} query per sheet
+     * and dependency level.
+     */
+    public void prefetch(Collection<String> cellNames) {
+        Map<String, CellReference> pending = new HashMap<>();
+        for (String cellName : cellNames) {
+            CellReference reference = CellReference.parse(cellName, sheetName);
+            if (!cells.containsKey(reference.key())) {
+                pending.put(reference.key(), reference);
+            }
+        }
+        while (!pending.isEmpty()) {
+            Map<String, Set<String>> nameKeysBySheet = new HashMap<>();
+            for (CellReference reference : pending.values()) {
+                nameKeysBySheet.computeIfAbsent(reference.sheetKey(), key -> new HashSet<>()).add(reference.nameKey());
+            }
+
+            List<CellEntity> found = new ArrayList<>();
+            nameKeysBySheet.forEach((sheetKey, nameKeys) -> {
+                SheetSnapshot snapshot = snapshot(sheetKey);
+                if (snapshot != null) {
+                    nameKeys.forEach(nameKey -> snapshot.get(nameKey).ifPresent(found::add));
+                    return;
+                }
+                if (trace != null) {
+                    trace.repositoryCall();
+                }
+                List<CellEntity> sheetCells = cellRepository.findAllBySheetKeyAndNameKeyIn(sheetKey, nameKeys);
+                log.debug("Prefetched {} of {} cells in sheet {}", sheetCells.size(), nameKeys.size(), sheetKey);
+                found.addAll(sheetCells);
+            });
+            found.forEach(cell -> cells.put(CellReference.of(cell).key(), Optional.of(cell)));
+            pending.keySet().forEach(key -> cells.putIfAbsent(key, Optional.empty()));
+
+            pending = new HashMap<>();
+            for (CellEntity cell : found) {
+                if (CellEntity.CellType.FORMULA.equals(cell.getType())) {
+                    for (String reference : ResultCalculator.references(cell.getValue())) {
+                        CellReference next = CellReference.parse(reference, cell.getSheetName());
+                        if (!cells.containsKey(next.key())) {
+                            pending.put(next.key(), next);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    List<String> getFilledFormula(CellEntity cell) {
+        return filledFormulas.get(CellReference.of(cell).key());
+    }
+
+    /**
+     * @return false if the cell is already being filled, i.e. the formulas reference each other
+     */
+    boolean startFilling(CellEntity cell) {
+        if (!filling.add(CellReference.of(cell).key())) {
+            return false;
+        }
+        if (trace != null) {
+            trace.startFilling(cell);
+        }
+        return true;
+    }
+
+    void finishFilling(CellEntity cell, List<String> filledFormula) {
+        String key = CellReference.of(cell).key();
+        filling.remove(key);
+        if (trace != null) {
+            trace.finishFilling();
+        }
+        if (filledFormula != null) {
+            filledFormulas.put(key, filledFormula);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package it.devchallenge.excel.service;
+
+import it.devchallenge.excel.dto.ExplainResponse;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.model.CellReference;
+
+import java.util.*;
+
+/**
+ * Records the cells an {@link EvaluationContext} visits. Contexts without a trace skip the recording entirely.
+ */
+public class EvaluationTrace {
+    private final Map<String, TracedCell> cells = new LinkedHashMap<>();
+    private final Deque<Frame> filling = new ArrayDeque<>();
+    private int repositoryCalls;
+
+    void repositoryCall() {
+        repositoryCalls++;
+    }
+
+    void lookup(CellReference reference, String source, Optional<CellEntity> cell, long nanos) {
+        TracedCell traced = cells.computeIfAbsent(reference.key(), key -> new TracedCell(reference,
+                cell.isEmpty() ? "missing" : source));
+        traced.visits++;
+        traced.lookupNanos += nanos;
+        cell.ifPresent(found -> {
+            traced.reference = CellReference.of(found);
+            traced.value = found.getValue();
+        });
+        if (!filling.isEmpty()) {
+            filling.peek().cell().children.add(reference.key());
+        }
+    }
+
+    void startFilling(CellEntity cell) {
+        TracedCell traced = cells.computeIfAbsent(CellReference.of(cell).key(),
+                key -> new TracedCell(CellReference.of(cell), "cache"));
+        filling.push(new Frame(traced, System.nanoTime()));
+    }
+
+    void finishFilling() {
+        Frame frame = filling.pop();
+        frame.cell().evaluateNanos += System.nanoTime() - frame.start();
+    }
+
+    /**
+     * Parse time of the formula being filled.
+     */
+    void parsed(long nanos) {
+        if (!filling.isEmpty()) {
+            filling.peek().cell().parseNanos += nanos;
+        }
+    }
+
+    void evaluated(CellEntity cell, long nanos) {
+        TracedCell traced = cells.get(CellReference.of(cell).key());
+        if (traced != null) {
+            traced.evaluateNanos += nanos;
+        }
+    }
+
+    public int getRepositoryCalls() {
+        return repositoryCalls;
+    }
+
+    public ExplainResponse.Node tree(CellEntity root) {
+        return node(CellReference.of(root).key(), new HashSet<>());
+    }
+
+    private ExplainResponse.Node node(String key, Set<String> expanded) {
+        TracedCell traced = cells.get(key);
+        var node = ExplainResponse.Node.builder()
+                .cell(traced.reference.sheetName() + CellReference.SHEET_SEPARATOR + traced.reference.cellName())
+                .value(traced.value)
+                .source(traced.source)
+                .lookupNanos(traced.lookupNanos)
+                .parseNanos(traced.parseNanos)
+                .evaluateNanos(traced.evaluateNanos)
+                .visits(traced.visits);
+        if (expanded.add(key)) {
+            List<ExplainResponse.Node> children = new ArrayList<>();
+            for (String child : traced.children) {
+                children.add(node(child, expanded));
+            }
+            node.children(children);
+        }
+        return node.build();
+    }
+
+    private static class TracedCell {
+        private final String source;
+        private CellReference reference;
+        private final Set<String> children = new LinkedHashSet<>();
+        private String value;
+        private int visits;
+        private long lookupNanos;
+        private long parseNanos;
+        private long evaluateNanos;
+
+        private TracedCell(CellReference reference, String source) {
+            this.reference = reference;
+            this.source = source;
+        }
+    }
+
+    private record Frame(TracedCell cell, long start) {
+    }
+}
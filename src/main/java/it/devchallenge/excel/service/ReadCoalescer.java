@@ -0,0 +1,90 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Single-flight for reads: concurrent identical reads of the same sheet version wait for one computation
+ * and share its result.
+ */
+@Slf4j
+@Component
+public class ReadCoalescer {
+    private final Map<ReadKey, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final Counter requests;
+    private final Counter coalesced;
+
+    public ReadCoalescer(MeterRegistry meterRegistry) {
+        this.requests = meterRegistry.counter("sheet.read.requests");
+        this.coalesced = meterRegistry.counter("sheet.read.coalesced");
+        meterRegistry.gauge("sheet.read.coalescing.ratio", this,
+                c -> c.requests.count() == 0 ? 0 : c.coalesced.count() / c.requests.count());
+        meterRegistry.gaugeMapSize("sheet.read.in-flight", Tags.empty(), inFlight);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T, E extends Exception> T execute(ReadKey key, Loader<T, E> loader) throws E {
+        requests.increment();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            log.debug("Joining in-flight read {}", key);
+            return (T) ReadCoalescer.<E>await(running);
+        }
+
+        try {
+            T result = loader.load();
+            future.complete(result);
+            return result;
+        } catch (Exception | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Drops the in-flight reads of the sheet, so reads started after a write never join a computation of the old data.
+     */
+    public void invalidate(String sheetKey) {
+        inFlight.keySet().removeIf(key -> key.sheetKey().equals(sheetKey));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Exception> Object await(CompletableFuture<Object> future) throws E {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            } else if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw (E) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for read", e);
+        }
+    }
+
+    /**
+     * @param cellKey normalized cell name, null for the whole sheet
+     * @param version version of the sheet read after the request started
+     */
+    public record ReadKey(String sheetKey, String cellKey, SheetVersions.Stamp version) {
+    }
+
+    public interface Loader<T, E extends Exception> {
+        T load() throws E;
+    }
+}
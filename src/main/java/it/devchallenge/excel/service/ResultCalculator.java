@@ -4,9 +4,8 @@ import com.mongodb.internal.VisibleForTesting;
 import it.devchallenge.excel.exceptions.CalculationException;
 import it.devchallenge.excel.exceptions.NotFoundException;
 import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.model.CellReference;
 import it.devchallenge.excel.repository.CellRepository;
-import lombok.RequiredArgsConstructor;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.mariuszgromada.math.mxparser.Expression;
 
@@ -15,59 +14,102 @@ import java.util.Arrays;
 import java.util.List;
 
 @Slf4j
-@RequiredArgsConstructor
 public class ResultCalculator {
     private final CellEntity cell;
-    private final CellRepository cellRepository;
+    private final EvaluationContext context;
 
-    @Setter
-    private CellEntity newCell;
+    public ResultCalculator(CellEntity cell, CellRepository cellRepository) {
+        this(cell, new EvaluationContext(cell.getSheetName(), cellRepository));
+    }
+
+    public ResultCalculator(CellEntity cell, EvaluationContext context) {
+        this.cell = cell;
+        this.context = context;
+    }
 
+    public void setNewCell(CellEntity newCell) {
+        context.put(newCell);
+    }
 
-    private CellEntity getCell(String cellName) throws CalculationException, NotFoundException {
-        if (cell.getName().equalsIgnoreCase(cellName)) {
+    private CellEntity getCell(String sheetName, String cellName) throws CalculationException, NotFoundException {
+        CellReference reference = CellReference.parse(cellName, sheetName);
+        if (reference.key().equals(CellReference.of(cell).key())) {
             throw new CalculationException("Recursive formula");
-        } else if (newCell != null && newCell.getName().equalsIgnoreCase(cellName)) {
-            return newCell;
-        } else {
-            return cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(cell.getSheetName(), cellName)
-                    .orElseThrow(() -> new NotFoundException("Cell %s not found".formatted(cellName)));
         }
+        return context.getCell(reference)
+                .orElseThrow(() -> new NotFoundException("Cell %s not found".formatted(cellName)));
     }
 
     public String calculateFormula() throws CalculationException {
-        String formula;
-        try {
-            formula = String.join("", fillFormula(cell.getValue()));
-            if (!formula.matches(".*[-+*/()].*")) {
-                log.info("Formula doesn't have math operators, returning result: {}", formula);
-                return formula;
-            }
-        } catch (NotFoundException e) {
-            log.error("Failed to fill formula {}", cell.getValue(), e);
-            throw new CalculationException("Failed to fill formula", e);
+        String formula = compileFormula();
+        if (!hasOperators(formula)) {
+            log.info("Formula doesn't have math operators, returning result: {}", formula);
+            return formula;
         }
 
+        EvaluationTrace trace = context.getTrace();
+        long start = trace == null ? 0 : System.nanoTime();
         Expression e = new Expression(formula);
         double expressionResult = e.calculate();
+        if (trace != null) {
+            trace.evaluated(cell, System.nanoTime() - start);
+        }
         if (Double.isNaN(expressionResult)) {
             throw new CalculationException("Failed to calculate expression %s".formatted(cell.getValue()));
         }
         log.debug("Formula {} calculation result {}", formula, expressionResult);
-        return String.valueOf(expressionResult).replaceAll("\\.?0*$", "");
+        return format(expressionResult);
+    }
+
+    /**
+     * @return the formula with all referenced cells replaced by their values or formulas
+     */
+    public String compileFormula() throws CalculationException {
+        try {
+            return String.join("", fillCell(cell));
+        } catch (NotFoundException e) {
+            log.error("Failed to fill formula {}", cell.getValue(), e);
+            throw new CalculationException("Failed to fill formula", e);
+        }
+    }
+
+    public static boolean hasOperators(String formula) {
+        return formula.matches(".*[-+*/()].*");
+    }
+
+    public static String format(double result) {
+        return String.valueOf(result).replaceAll("\\.?0*$", "");
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.AccessModifier.PRIVATE)
     protected List<String> fillFormula(String formula) throws NotFoundException, CalculationException {
+        return fillFormula(formula, cell.getSheetName());
+    }
+
+    // cells used in the formula without a sheet name are looked up in the sheet of the formula
+    private List<String> fillFormula(String formula, String sheetName) throws NotFoundException, CalculationException {
+        EvaluationTrace trace = context.getTrace();
+        long start = trace == null ? 0 : System.nanoTime();
         List<String> formulaElems = parseFormula(formula);
+        if (trace != null) {
+            trace.parsed(System.nanoTime() - start);
+        }
         List<String> result = new ArrayList<>();
         for (String elem : formulaElems) {
-            if ((elem.length() == 1 && isOperator(elem.charAt(0))) || isDigit(elem)) {
+            if (!isReference(elem)) {
                 result.add(elem);
             } else {
-                CellEntity nexCell = getCell(elem);
+                CellEntity nexCell = getCell(sheetName, elem);
                 if (nexCell.getType().equals(CellEntity.CellType.FORMULA)) {
-                    result.addAll(fillFormula(nexCell.getValue()));
+                    List<String> filled = fillCell(nexCell);
+                    // the inlined formula keeps its own precedence, e.g. =a*3 with a = 1+2 is (1+2)*3
+                    if (filled.size() > 1) {
+                        result.add("(");
+                        result.addAll(filled);
+                        result.add(")");
+                    } else {
+                        result.addAll(filled);
+                    }
                 } else {
                     result.add(nexCell.getValue());
                 }
@@ -77,18 +119,52 @@ public class ResultCalculator {
         return result;
     }
 
+    private List<String> fillCell(CellEntity formulaCell) throws NotFoundException, CalculationException {
+        List<String> filled = context.getFilledFormula(formulaCell);
+        if (filled != null) {
+            return filled;
+        }
+        if (!context.startFilling(formulaCell)) {
+            throw new CalculationException("Recursive formula");
+        }
+        try {
+            filled = fillFormula(formulaCell.getValue(), formulaCell.getSheetName());
+        } finally {
+            context.finishFilling(formulaCell, filled);
+        }
+        return filled;
+    }
+
     @VisibleForTesting(otherwise = VisibleForTesting.AccessModifier.PRIVATE)
     protected List<String> parseFormula(String formula) throws CalculationException {
         if (!formula.startsWith("=")) {
             throw new CalculationException("Not valid formula");
         }
-        String input = formula.substring(1);
-        String[] elems = input.split("((?=[+\\-*/()])|(?<=[+\\-*/()]))");
-        var resultElems = Arrays.stream(elems).map(String::trim).filter(e -> !e.isEmpty()).toList();
+        var resultElems = tokenize(formula);
         log.debug("Parsed formula {} to elems: {}", formula, resultElems);
         return resultElems;
     }
 
+    /**
+     * @return names of the cells used in the formula
+     */
+    public static List<String> references(String formula) {
+        if (formula == null || !formula.startsWith("=")) {
+            return List.of();
+        }
+        return tokenize(formula).stream().filter(ResultCalculator::isReference).toList();
+    }
+
+    private static List<String> tokenize(String formula) {
+        String input = formula.substring(1);
+        String[] elems = input.split("((?=[+\\-*/()])|(?<=[+\\-*/()]))");
+        return Arrays.stream(elems).map(String::trim).filter(e -> !e.isEmpty()).toList();
+    }
+
+    private static boolean isReference(String elem) {
+        return !((elem.length() == 1 && isOperator(elem.charAt(0))) || isDigit(elem));
+    }
+
     private static boolean isOperator(char c) {
         return c == '+' || c == '-' || c == '*' || c == '/' || c == '(' || c == ')';
     }
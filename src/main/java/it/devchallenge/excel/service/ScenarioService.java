@@ -0,0 +1,166 @@
+package it.devchallenge.excel.service;
+
+import it.devchallenge.excel.dto.ScenarioRequest;
+import it.devchallenge.excel.dto.ScenarioResponse;
+import it.devchallenge.excel.exceptions.CalculationException;
+import it.devchallenge.excel.exceptions.NotFoundException;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.model.CellReference;
+import it.devchallenge.excel.repository.CellRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.mariuszgromada.math.mxparser.Argument;
+import org.mariuszgromada.math.mxparser.Expression;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Evaluates what-if scenarios: output cells are compiled once with the input cells left as arguments,
+ * then every scenario only sets the argument values. Nothing is stored.
+ */
+@Slf4j
+@Service
+public class ScenarioService {
+    public static final int MAX_SCENARIOS = 100_000;
+    private static final int CHUNK_SIZE = 1024;
+    private static final String INPUT_ARGUMENT = "scenarioInput";
+
+    private final CellRepository cellRepository;
+    private final AdmissionController admissionController;
+
+    @Autowired
+    public ScenarioService(CellRepository cellRepository, AdmissionController admissionController) {
+        this.cellRepository = cellRepository;
+        this.admissionController = admissionController;
+    }
+
+    public ScenarioResponse evaluate(String sheetName, ScenarioRequest request) throws NotFoundException {
+        try (var permit = admissionController.admitScan()) {
+            return evaluateScenarios(sheetName, request);
+        }
+    }
+
+    private ScenarioResponse evaluateScenarios(String sheetName, ScenarioRequest request) throws NotFoundException {
+        List<String> inputs = request.getInputs() == null ? List.of() : request.getInputs();
+        List<String> outputs = request.getOutputs() == null ? List.of() : request.getOutputs();
+        List<List<Double>> scenarios = request.getScenarios() == null ? List.of() : request.getScenarios();
+        if (scenarios.size() > MAX_SCENARIOS) {
+            throw new IllegalArgumentException("At most %d scenarios can be evaluated at once".formatted(MAX_SCENARIOS));
+        }
+
+        // column per input cell
+        double[][] columns = new double[inputs.size()][scenarios.size()];
+        for (int s = 0; s < scenarios.size(); s++) {
+            List<Double> scenario = scenarios.get(s);
+            if (scenario == null || scenario.size() != inputs.size() || scenario.stream().anyMatch(Objects::isNull)) {
+                throw new IllegalArgumentException("Scenario %d must have %d values".formatted(s, inputs.size()));
+            }
+            for (int i = 0; i < inputs.size(); i++) {
+                columns[i][s] = scenario.get(i);
+            }
+        }
+
+        EvaluationContext context = new EvaluationContext(sheetName, cellRepository);
+        context.prefetch(Stream.concat(inputs.stream(), outputs.stream()).toList());
+        for (int i = 0; i < inputs.size(); i++) {
+            CellReference input = CellReference.parse(inputs.get(i), sheetName);
+            context.put(CellEntity.builder()
+                    .name(input.cellName())
+                    .sheetName(input.sheetName())
+                    .value(INPUT_ARGUMENT + i)
+                    .type(CellEntity.CellType.DIGIT)
+                    .build());
+        }
+        List<CompiledOutput> compiled = new ArrayList<>();
+        for (String output : outputs) {
+            compiled.add(compile(context, output));
+        }
+
+        // column per output cell, chunks of scenarios are evaluated in parallel
+        String[][] results = new String[outputs.size()][scenarios.size()];
+        int chunks = (scenarios.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> evaluateChunk(compiled, columns, results,
+                chunk * CHUNK_SIZE, Math.min(scenarios.size(), (chunk + 1) * CHUNK_SIZE)));
+
+        List<List<String>> rows = new ArrayList<>(scenarios.size());
+        for (int s = 0; s < scenarios.size(); s++) {
+            String[] row = new String[outputs.size()];
+            for (int o = 0; o < outputs.size(); o++) {
+                row[o] = results[o][s];
+            }
+            rows.add(Arrays.asList(row));
+        }
+        return ScenarioResponse.builder()
+                .outputs(outputs)
+                .results(rows)
+                .build();
+    }
+
+    private CompiledOutput compile(EvaluationContext context, String output) throws NotFoundException {
+        CellEntity cell = context.getCell(output)
+                .orElseThrow(() -> new NotFoundException("Cell '%s' in sheet %s not found".formatted(output, context.getSheetName())));
+        String formula = switch (cell.getType()) {
+            case DIGIT, STRING -> cell.getValue();
+            case FORMULA -> {
+                try {
+                    yield new ResultCalculator(cell, context).compileFormula();
+                } catch (CalculationException e) {
+                    log.error("Failed to compile output {}", output, e);
+                    yield null;
+                }
+            }
+        };
+        if (formula == null) {
+            return new CompiledOutput(null, -1, "ERROR");
+        } else if (formula.matches(INPUT_ARGUMENT + "\\d+")) {
+            return new CompiledOutput(null, Integer.parseInt(formula.substring(INPUT_ARGUMENT.length())), null);
+        } else if (!ResultCalculator.hasOperators(formula)) {
+            return new CompiledOutput(null, -1, formula);
+        }
+        log.debug("Compiled output {} to {}", output, formula);
+        return new CompiledOutput(formula, -1, null);
+    }
+
+    private void evaluateChunk(List<CompiledOutput> compiled, double[][] columns, String[][] results, int from, int to) {
+        // mXparser expressions are not thread safe, every chunk gets its own copies
+        Argument[] arguments = new Argument[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            arguments[i] = new Argument(INPUT_ARGUMENT + i, 0);
+        }
+        Expression[] expressions = new Expression[compiled.size()];
+        for (int o = 0; o < compiled.size(); o++) {
+            if (compiled.get(o).formula() != null) {
+                expressions[o] = new Expression(compiled.get(o).formula(), arguments);
+            }
+        }
+
+        for (int s = from; s < to; s++) {
+            for (int i = 0; i < columns.length; i++) {
+                arguments[i].setArgumentValue(columns[i][s]);
+            }
+            for (int o = 0; o < compiled.size(); o++) {
+                CompiledOutput output = compiled.get(o);
+                if (expressions[o] != null) {
+                    double result = expressions[o].calculate();
+                    results[o][s] = Double.isNaN(result) ? "ERROR" : ResultCalculator.format(result);
+                } else if (output.input() >= 0) {
+                    results[o][s] = ResultCalculator.format(columns[output.input()][s]);
+                } else {
+                    results[o][s] = output.constant();
+                }
+            }
+        }
+    }
+
+    /**
+     * Exactly one of formula (depends on inputs), input (index of the input it equals to) or constant is set.
+     */
+    private record CompiledOutput(String formula, int input, String constant) {
+    }
+}
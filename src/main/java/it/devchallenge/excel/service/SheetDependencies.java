@@ -0,0 +1,130 @@
+package it.devchallenge.excel.service;
+
+import it.devchallenge.excel.model.CellDependencyEntity;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.model.CellReference;
+import it.devchallenge.excel.model.SheetDependencyEntity;
+import it.devchallenge.excel.repository.CellDependencyRepository;
+import it.devchallenge.excel.repository.CellRepository;
+import it.devchallenge.excel.repository.IndexCreator;
+import it.devchallenge.excel.repository.SheetDependencyRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Index of cross-sheet references: an edge per formula cell and cell of another sheet it uses,
+ * plus a sheet-to-sheet index of the same edges.
+ */
+@Slf4j
+@Component
+public class SheetDependencies {
+    private final CellDependencyRepository cellDependencyRepository;
+    private final SheetDependencyRepository sheetDependencyRepository;
+    private final CellRepository cellRepository;
+    private final IndexCreator indexCreator;
+
+    @Autowired
+    public SheetDependencies(CellDependencyRepository cellDependencyRepository,
+                             SheetDependencyRepository sheetDependencyRepository,
+                             CellRepository cellRepository,
+                             IndexCreator indexCreator) {
+        this.cellDependencyRepository = cellDependencyRepository;
+        this.sheetDependencyRepository = sheetDependencyRepository;
+        this.cellRepository = cellRepository;
+        this.indexCreator = indexCreator;
+    }
+
+    /**
+     * Replaces the cross-sheet edges of the cell after its value changed from oldValue.
+     */
+    public void update(CellEntity cell, String oldValue) {
+        Map<String, CellReference> oldReferences = crossSheetReferences(cell.getSheetName(), oldValue);
+        Map<String, CellReference> newReferences = crossSheetReferences(cell.getSheetName(), cell.getValue());
+        if (oldReferences.keySet().equals(newReferences.keySet())) {
+            return;
+        }
+        indexCreator.ensureIndexes(CellDependencyEntity.class);
+        indexCreator.ensureIndexes(SheetDependencyEntity.class);
+
+        String sheetKey = CellEntity.normalize(cell.getSheetName());
+        String nameKey = CellEntity.normalize(cell.getName());
+        cellDependencyRepository.deleteAllBySheetKeyAndNameKey(sheetKey, nameKey);
+        cellDependencyRepository.saveAll(newReferences.values().stream()
+                .map(reference -> CellDependencyEntity.builder()
+                        .sheetKey(sheetKey)
+                        .nameKey(nameKey)
+                        .targetSheetKey(reference.sheetKey())
+                        .targetNameKey(reference.nameKey())
+                        .build())
+                .toList());
+
+        Set<String> newSheets = sheetKeys(newReferences);
+        newSheets.forEach(referencedSheetKey ->
+                sheetDependencyRepository.save(SheetDependencyEntity.of(sheetKey, referencedSheetKey)));
+        for (String referencedSheetKey : sheetKeys(oldReferences)) {
+            if (!newSheets.contains(referencedSheetKey)
+                    && !cellDependencyRepository.existsBySheetKeyAndTargetSheetKey(sheetKey, referencedSheetKey)) {
+                sheetDependencyRepository.deleteById(SheetDependencyEntity.of(sheetKey, referencedSheetKey).getId());
+            }
+        }
+        log.debug("Cell {} of sheet {} references {}", cell.getName(), cell.getSheetName(), newReferences.keySet());
+    }
+
+    /**
+     * @return formula cells of other sheets using the cell, loaded with one query per sheet
+     */
+    public List<CellEntity> dependents(String sheetName, String cellName) {
+        return dependents(cellDependencyRepository.findAllByTargetSheetKeyAndTargetNameKey(
+                CellEntity.normalize(sheetName), CellEntity.normalize(cellName)));
+    }
+
+    /**
+     * @return formula cells of other sheets using any of the cells, loaded with one query per sheet
+     */
+    public List<CellEntity> dependents(String sheetName, Collection<String> cellNames) {
+        return dependents(cellDependencyRepository.findAllByTargetSheetKeyAndTargetNameKeyIn(
+                CellEntity.normalize(sheetName), cellNames.stream().map(CellEntity::normalize).toList()));
+    }
+
+    private List<CellEntity> dependents(List<CellDependencyEntity> edges) {
+        List<CellEntity> dependents = new ArrayList<>();
+        edges.stream()
+                .collect(Collectors.groupingBy(CellDependencyEntity::getSheetKey,
+                        Collectors.mapping(CellDependencyEntity::getNameKey, Collectors.toSet())))
+                .forEach((sheetKey, nameKeys) -> dependents.addAll(cellRepository.findAllBySheetKeyAndNameKeyIn(sheetKey, nameKeys)));
+        return dependents;
+    }
+
+    /**
+     * @return keys of the sheets whose results may depend on the sheet, directly or through other sheets
+     */
+    public Set<String> dependentSheets(String sheetName) {
+        Set<String> dependentSheets = new HashSet<>();
+        Set<String> referenced = Set.of(CellEntity.normalize(sheetName));
+        while (!referenced.isEmpty()) {
+            referenced = sheetDependencyRepository.findAllByReferencedSheetKeyIn(referenced).stream()
+                    .map(SheetDependencyEntity::getSheetKey)
+                    .filter(dependentSheets::add)
+                    .collect(Collectors.toSet());
+        }
+        return dependentSheets;
+    }
+
+    private static Map<String, CellReference> crossSheetReferences(String sheetName, String formula) {
+        String sheetKey = CellEntity.normalize(sheetName);
+        Map<String, CellReference> references = new HashMap<>();
+        ResultCalculator.references(formula).stream()
+                .map(reference -> CellReference.parse(reference, sheetName))
+                .filter(reference -> !reference.sheetKey().equals(sheetKey))
+                .forEach(reference -> references.put(reference.key(), reference));
+        return references;
+    }
+
+    private static Set<String> sheetKeys(Map<String, CellReference> references) {
+        return references.values().stream().map(CellReference::sheetKey).collect(Collectors.toSet());
+    }
+}
@@ -2,35 +2,54 @@ package it.devchallenge.excel.service;
 
 import com.mongodb.internal.VisibleForTesting;
 import it.devchallenge.excel.dto.CellResponse;
+import it.devchallenge.excel.dto.ExplainResponse;
+import it.devchallenge.excel.dto.SheetPageResponse;
 import it.devchallenge.excel.exceptions.CalculationException;
 import it.devchallenge.excel.exceptions.NotFoundException;
+import it.devchallenge.excel.exceptions.OverloadedException;
 import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.model.CellReference;
 import it.devchallenge.excel.repository.CellRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.stream.Stream;
 
 @Slf4j
 @Service
 public class SheetService {
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final int MAX_CELLS_PER_REQUEST = 1000;
+    public static final int STREAM_BATCH_SIZE = 500;
+    public static final Set<String> CELL_FIELDS = Set.of("value", "result");
+
     private final CellRepository cellRepository;
+    private final CellWriteBatcher cellWriteBatcher;
+    private final SheetVersions sheetVersions;
+    private final ReadCoalescer readCoalescer;
+    private final SheetDependencies sheetDependencies;
+    private final AdmissionController admissionController;
+    private final SheetSnapshots sheetSnapshots;
 
     @Autowired
-    public SheetService(CellRepository cellRepository) {
+    public SheetService(CellRepository cellRepository, CellWriteBatcher cellWriteBatcher,
+                        SheetVersions sheetVersions, ReadCoalescer readCoalescer, SheetDependencies sheetDependencies,
+                        AdmissionController admissionController, SheetSnapshots sheetSnapshots) {
         this.cellRepository = cellRepository;
+        this.cellWriteBatcher = cellWriteBatcher;
+        this.sheetVersions = sheetVersions;
+        this.readCoalescer = readCoalescer;
+        this.sheetDependencies = sheetDependencies;
+        this.admissionController = admissionController;
+        this.sheetSnapshots = sheetSnapshots;
     }
 
     public CellResponse addCell(String sheetName, String cellName, String cellValue) throws CalculationException {
-        CellEntity.CellType type;
-        if (cellValue.startsWith("=")) {
-            type = CellEntity.CellType.FORMULA;
-        } else if (ResultCalculator.isDigit(cellValue)) {
-            type = CellEntity.CellType.DIGIT;
-        } else {
-            type = CellEntity.CellType.STRING;
-        }
+        CellEntity.CellType type = cellType(cellValue);
 
         CellEntity cell = getCell(sheetName, cellName)
                 .orElseGet(() ->
@@ -39,21 +58,38 @@ public class SheetService {
                                 .sheetName(sheetName)
                                 .build());
 
+        String oldValue = cell.getValue();
         cell.setValue(cellValue);
         cell.setType(type);
+        List<CellEntity> dependents = new ArrayList<>();
         if (type.equals(CellEntity.CellType.FORMULA) || type.equals(CellEntity.CellType.STRING) || cellValue.equals("0")) {
-            // calculate the result for all cells that use the current cell
-            var cells = cellRepository.findByValueContainingInput(sheetName, cellName);
-            // todo: run it async to improve speed
-            for (CellEntity c : cells) {
-                ResultCalculator resultCalculator = new ResultCalculator(c, cellRepository);
-                resultCalculator.setNewCell(cell);
-                resultCalculator.calculateFormula();
-            }
+            // the result of all cells that use the current cell, in this sheet and in other sheets, is recalculated
+            dependents.addAll(cellRepository.findByValueContainingInput(sheetName, cellName));
+            dependents.addAll(sheetDependencies.dependents(sheetName, cellName));
         }
 
-        String result = getResult(cell);
-        cellRepository.save(cell);
+        String result;
+        try (var permit = admissionController.admitWrite(sheetName, dependents.size() + 1)) {
+            // all dependents share one context, so a cell used by several of them is loaded and filled once
+            EvaluationContext context = new EvaluationContext(sheetName, cellRepository);
+            context.put(cell);
+            dependents.forEach(context::offer);
+            prefetchReferences(context, dependents);
+            prefetchReferences(context, List.of(cell));
+            for (CellEntity c : dependents) {
+                new ResultCalculator(c, context).calculateFormula();
+            }
+
+            result = getResult(cell, context);
+            cellWriteBatcher.save(cell);
+            sheetDependencies.update(cell, oldValue);
+        }
+        // the version of the sheet is changed by the stored batch, results of the sheets using it change as well
+        readCoalescer.invalidate(CellEntity.normalize(sheetName));
+        for (String sheetKey : sheetDependencies.dependentSheets(sheetName)) {
+            sheetVersions.bump(sheetKey);
+            readCoalescer.invalidate(sheetKey);
+        }
 
         return CellResponse.builder()
                 .value(cellValue)
@@ -62,16 +98,32 @@ public class SheetService {
     }
 
     public Map<String, CellResponse> getSheet(String sheetName) throws NotFoundException {
-        List<CellEntity> sheetCells = cellRepository.findAllBySheetNameIgnoreCase(sheetName);
+        var version = sheetVersions.current(sheetName);
+        var key = new ReadCoalescer.ReadKey(CellEntity.normalize(sheetName), null, version);
+        return readCoalescer.execute(key, () -> {
+            try (var permit = admissionController.admitScan()) {
+                return loadSheet(sheetName, version);
+            }
+        });
+    }
+
+    private Map<String, CellResponse> loadSheet(String sheetName, SheetVersions.Stamp version) throws NotFoundException {
+        // sheets too big to be kept in memory are read from the repository
+        SheetSnapshot snapshot = sheetSnapshots.get(sheetName, version);
+        List<CellEntity> sheetCells = snapshot == null ? cellRepository.findAllBySheetNameIgnoreCase(sheetName) : snapshot.cells();
         if (sheetCells.isEmpty()) {
             throw new NotFoundException("Sheet %s not found".formatted(sheetName));
         }
+        // every cell of the sheet is already loaded, cells of other sheets are loaded with one query per sheet
+        EvaluationContext context = snapshotContext(sheetName, null);
+        context.pin(sheetName, snapshot);
+        sheetCells.forEach(context::put);
+        prefetchReferences(context, sheetCells);
         Map<String, CellResponse> response = new HashMap<>();
         sheetCells.forEach(cell -> {
             String result;
             try {
-                result = getResult(cell);
-                cellRepository.save(cell);
+                result = getResult(cell, context);
             } catch (CalculationException e) {
                 log.error("Calculation error!", e);
                 result = "ERROR";
@@ -84,13 +136,178 @@ public class SheetService {
         return response;
     }
 
+    public boolean sheetExists(String sheetName) {
+        return cellRepository.existsBySheetKey(CellEntity.normalize(sheetName));
+    }
+
+    /**
+     * Admits an export before its response is committed, so an overloaded node refuses it with 429 instead of
+     * truncating the stream. The permit is held until the export is written and closed by the caller.
+     *
+     * @throws OverloadedException if no scan permit is available within the read timeout
+     */
+    public AdmissionController.Permit admitStream() {
+        return admissionController.admitScan();
+    }
+
+    /**
+     * Reads the sheet from a cursor and evaluates it batch by batch, so only one batch is kept in memory.
+     * The export must be admitted with {@link #admitStream()} first, batches never wait for permits.
+     */
+    public void streamSheet(String sheetName, CellConsumer consumer) throws IOException {
+        try (Stream<CellEntity> sheetCells = cellRepository.streamSheet(sheetName, STREAM_BATCH_SIZE)) {
+            Iterator<CellEntity> iterator = sheetCells.iterator();
+            List<CellEntity> batch = new ArrayList<>(STREAM_BATCH_SIZE);
+            while (iterator.hasNext()) {
+                batch.add(iterator.next());
+                if (batch.size() == STREAM_BATCH_SIZE || !iterator.hasNext()) {
+                    streamBatch(sheetName, batch, consumer);
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private void streamBatch(String sheetName, List<CellEntity> batch, CellConsumer consumer) throws IOException {
+        EvaluationContext context = new EvaluationContext(sheetName, cellRepository);
+        batch.forEach(context::put);
+        context.prefetch(batch.stream()
+                .flatMap(cell -> ResultCalculator.references(cell.getValue()).stream())
+                .toList());
+        for (CellEntity cell : batch) {
+            String result;
+            try {
+                result = getResult(cell, context);
+            } catch (CalculationException e) {
+                log.error("Calculation error!", e);
+                result = "ERROR";
+            }
+            consumer.accept(cell.getName(), CellResponse.builder()
+                    .value(cell.getValue())
+                    .result(result)
+                    .build());
+        }
+        consumer.flush();
+    }
+
+    public Map<String, CellResponse> getCells(String sheetName, List<String> cellNames) throws NotFoundException {
+        if (cellNames.size() > MAX_CELLS_PER_REQUEST) {
+            throw new IllegalArgumentException("At most %d cells can be requested at once".formatted(MAX_CELLS_PER_REQUEST));
+        }
+        try (var permit = admissionController.admitRead()) {
+            return loadCells(sheetName, cellNames);
+        }
+    }
+
+    private Map<String, CellResponse> loadCells(String sheetName, List<String> cellNames) throws NotFoundException {
+        EvaluationContext context = snapshotContext(sheetName, null);
+        context.prefetch(cellNames);
+
+        Map<String, CellResponse> response = new LinkedHashMap<>();
+        for (String cellName : cellNames) {
+            var cell = context.getCell(cellName);
+            if (cell.isEmpty() || response.containsKey(cell.get().getName())) {
+                continue;
+            }
+            String result;
+            try {
+                result = getResult(cell.get(), context);
+            } catch (CalculationException e) {
+                log.error("Calculation error", e);
+                result = "ERROR";
+            }
+            response.put(cell.get().getName(), CellResponse.builder()
+                    .value(cell.get().getValue())
+                    .result(result)
+                    .build());
+        }
+        if (response.isEmpty()) {
+            throw new NotFoundException("Cells %s in sheet %s not found".formatted(cellNames, sheetName));
+        }
+        return response;
+    }
+
+    public SheetPageResponse getSheetPage(String sheetName, String prefix, String cursor, Integer limit, Set<String> fields)
+            throws NotFoundException {
+        if (!CELL_FIELDS.containsAll(fields)) {
+            throw new IllegalArgumentException("Unknown fields %s".formatted(fields));
+        }
+        int pageSize = limit == null ? MAX_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        try (var permit = admissionController.admitScan()) {
+            return loadSheetPage(sheetName, prefix, cursor, pageSize, fields);
+        }
+    }
+
+    private SheetPageResponse loadSheetPage(String sheetName, String prefix, String cursor, int pageSize, Set<String> fields)
+            throws NotFoundException {
+
+        // one extra cell tells whether there is a next page without a count query
+        List<CellEntity> sheetCells = cellRepository.findPage(sheetName, prefix, decodeCursor(cursor), pageSize + 1, fields);
+        if (sheetCells.isEmpty() && cursor == null && !cellRepository.existsBySheetKey(CellEntity.normalize(sheetName))) {
+            throw new NotFoundException("Sheet %s not found".formatted(sheetName));
+        }
+
+        String nextCursor = null;
+        if (sheetCells.size() > pageSize) {
+            sheetCells = sheetCells.subList(0, pageSize);
+            nextCursor = encodeCursor(sheetCells.get(pageSize - 1).getNameKey());
+        }
+
+        EvaluationContext context = new EvaluationContext(sheetName, cellRepository);
+        if (fields.contains("result")) {
+            sheetCells.forEach(context::put);
+            context.prefetch(sheetCells.stream()
+                    .flatMap(cell -> ResultCalculator.references(cell.getValue()).stream())
+                    .toList());
+        }
+
+        Map<String, CellResponse> cells = new LinkedHashMap<>();
+        for (CellEntity cell : sheetCells) {
+            var response = CellResponse.builder();
+            if (fields.contains("value")) {
+                response.value(cell.getValue());
+            }
+            if (fields.contains("result")) {
+                try {
+                    response.result(getResult(cell, context));
+                } catch (CalculationException e) {
+                    log.error("Calculation error!", e);
+                    response.result("ERROR");
+                }
+            }
+            cells.put(cell.getName(), response.build());
+        }
+        return SheetPageResponse.builder()
+                .cells(cells)
+                .nextCursor(nextCursor)
+                .build();
+    }
+
     public CellResponse getCellResponse(String sheetName, String cellName) throws NotFoundException {
-        var cell = getCell(sheetName, cellName)
+        var version = sheetVersions.current(sheetName);
+        var key = new ReadCoalescer.ReadKey(CellEntity.normalize(sheetName), CellEntity.normalize(cellName), version);
+        return readCoalescer.execute(key, () -> {
+            try (var permit = admissionController.admitRead()) {
+                return loadCellResponse(sheetName, cellName, version);
+            }
+        });
+    }
+
+    private CellResponse loadCellResponse(String sheetName, String cellName, SheetVersions.Stamp version)
+            throws NotFoundException {
+        EvaluationContext context = snapshotContext(sheetName, null);
+        context.pin(sheetName, sheetSnapshots.peek(sheetName, version));
+        // the cell and everything it uses, with one query per sheet and dependency level
+        context.prefetch(List.of(cellName));
+        var cell = context.getCell(CellReference.parse(cellName, sheetName))
                 .orElseThrow(() -> new NotFoundException("Cell '%s' in sheet %s not found".formatted(cellName, sheetName)));
 
         String result;
         try {
-            result = getResult(cell);
+            result = getResult(cell, context);
         } catch (CalculationException e) {
             log.error("Calculation error", e);
             result = "ERROR";
@@ -102,15 +319,97 @@ public class SheetService {
                 .build();
     }
 
+    /**
+     * Evaluates the cell like {@link #getCellResponse} does, but without sharing the read, and records every
+     * cell the evaluation visits.
+     */
+    public ExplainResponse explainCell(String sheetName, String cellName) throws NotFoundException {
+        try (var permit = admissionController.admitRead()) {
+            long start = System.nanoTime();
+            EvaluationTrace trace = new EvaluationTrace();
+            EvaluationContext context = snapshotContext(sheetName, trace);
+            var cell = context.getCell(CellReference.parse(cellName, sheetName))
+                    .orElseThrow(() -> new NotFoundException("Cell '%s' in sheet %s not found".formatted(cellName, sheetName)));
+
+            String result;
+            try {
+                result = getResult(cell, context);
+            } catch (CalculationException e) {
+                log.error("Calculation error", e);
+                result = "ERROR";
+            }
+
+            return ExplainResponse.builder()
+                    .value(cell.getValue())
+                    .result(result)
+                    .repositoryCalls(trace.getRepositoryCalls())
+                    .totalNanos(System.nanoTime() - start)
+                    .tree(trace.tree(cell))
+                    .build();
+        }
+    }
+
+    static CellEntity.CellType cellType(String cellValue) {
+        if (cellValue.startsWith("=")) {
+            return CellEntity.CellType.FORMULA;
+        } else if (ResultCalculator.isDigit(cellValue)) {
+            return CellEntity.CellType.DIGIT;
+        }
+        return CellEntity.CellType.STRING;
+    }
+
+    /**
+     * @return context reading the committed snapshots of sheets that have one loaded, cells of other sheets are read
+     * from Mongo as stored and may belong to a write still being stored
+     */
+    private EvaluationContext snapshotContext(String sheetName, EvaluationTrace trace) {
+        return new EvaluationContext(sheetName, cellRepository, sheetSnapshots, trace);
+    }
+
+    /**
+     * Loads every cell the formulas use, in their own sheets or in other ones, with one query per sheet
+     * and dependency level.
+     */
+    private static void prefetchReferences(EvaluationContext context, Collection<CellEntity> cells) {
+        context.prefetch(cells.stream()
+                .flatMap(cell -> ResultCalculator.references(cell.getValue()).stream()
+                        .map(reference -> CellReference.parse(reference, cell.getSheetName()).key()))
+                .toList());
+    }
+
     @VisibleForTesting(otherwise = VisibleForTesting.AccessModifier.PRIVATE)
     protected String getResult(CellEntity cell) throws CalculationException {
+        return getResult(cell, new EvaluationContext(cell.getSheetName(), cellRepository));
+    }
+
+    private String getResult(CellEntity cell, EvaluationContext context) throws CalculationException {
         return switch (cell.getType()) {
-            case FORMULA -> new ResultCalculator(cell, cellRepository).calculateFormula();
+            case FORMULA -> new ResultCalculator(cell, context).calculateFormula();
             case DIGIT, STRING -> cell.getValue();
         };
     }
 
+    private static String encodeCursor(String nameKey) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(nameKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeCursor(String cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+
     private Optional<CellEntity> getCell(String sheetName, String cellName) {
         return cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(sheetName, cellName);
     }
+
+    public interface CellConsumer {
+        void accept(String cellName, CellResponse cell) throws IOException;
+
+        /**
+         * Called after every evaluated batch.
+         */
+        void flush() throws IOException;
+    }
 }
@@ -0,0 +1,118 @@
+package it.devchallenge.excel.service;
+
+import it.devchallenge.excel.model.CellEntity;
+
+import java.util.*;
+
+/**
+ * Immutable version of a sheet. Cells are spread over a fixed number of buckets and a new version copies only
+ * the buckets of the changed cells, the other buckets are shared with the previous version.
+ * The snapshot also remembers the Mongo version of the sheet it was refreshed with and the stamp up to which
+ * it holds every stored cell, so a refresh loads only the cells stored after it.
+ */
+public final class SheetSnapshot {
+    private static final int BUCKETS = 64;
+
+    private final long version;
+    private final Map<String, CellEntity>[] buckets;
+    private final int size;
+    private final SheetVersions.Stamp stamp;
+    private final long synced;
+
+    private SheetSnapshot(long version, Map<String, CellEntity>[] buckets, int size, SheetVersions.Stamp stamp, long synced) {
+        this.version = version;
+        this.buckets = buckets;
+        this.size = size;
+        this.stamp = stamp;
+        this.synced = synced;
+    }
+
+    public static SheetSnapshot of(Collection<CellEntity> cells) {
+        return of(cells, SheetVersions.Stamp.NONE);
+    }
+
+    /**
+     * @param stamp version of the sheet read before the cells
+     */
+    @SuppressWarnings("unchecked")
+    public static SheetSnapshot of(Collection<CellEntity> cells, SheetVersions.Stamp stamp) {
+        Map<String, CellEntity>[] buckets = new Map[BUCKETS];
+        Arrays.fill(buckets, Map.of());
+        return new SheetSnapshot(0, buckets, 0, SheetVersions.Stamp.NONE, 0).refresh(cells, stamp);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public SheetVersions.Stamp getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @return stamp up to which all stored cells are in the snapshot
+     */
+    public long getSynced() {
+        return synced;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Optional<CellEntity> get(String cellName) {
+        String nameKey = CellEntity.normalize(cellName);
+        return Optional.ofNullable(buckets[bucket(nameKey)].get(nameKey));
+    }
+
+    public List<CellEntity> cells() {
+        List<CellEntity> cells = new ArrayList<>(size);
+        for (Map<String, CellEntity> bucket : buckets) {
+            cells.addAll(bucket.values());
+        }
+        return cells;
+    }
+
+    /**
+     * @return the next version with the cells added or replaced, this version stays unchanged
+     */
+    public SheetSnapshot with(Collection<CellEntity> cells) {
+        return with(cells, stamp, synced);
+    }
+
+    /**
+     * @param cells cells stored after {@link #getSynced()}, read after the stamp
+     * @return the next version with the cells and the stamp
+     */
+    public SheetSnapshot refresh(Collection<CellEntity> cells, SheetVersions.Stamp stamp) {
+        // with a batch in flight some cells up to the reserved stamp may be missing, the next refresh reads them again
+        long nextSynced = stamp.settled() ? Math.max(synced, stamp.reserved()) : synced;
+        return with(cells, this.stamp.max(stamp), nextSynced);
+    }
+
+    private SheetSnapshot with(Collection<CellEntity> cells, SheetVersions.Stamp nextStamp, long nextSynced) {
+        Map<String, CellEntity>[] next = buckets.clone();
+        Map<Integer, Map<String, CellEntity>> changed = new HashMap<>();
+        int nextSize = size;
+        for (CellEntity cell : cells) {
+            String nameKey = CellEntity.normalize(cell.getName());
+            int bucket = bucket(nameKey);
+            CellEntity current = changed.getOrDefault(bucket, buckets[bucket]).get(nameKey);
+            if (current != null && current.getVersion() > cell.getVersion()) {
+                // a newer write was already applied, e.g. a batch of another instance loaded by a refresh
+                continue;
+            }
+            Map<String, CellEntity> copy = changed.computeIfAbsent(bucket, key -> new HashMap<>(buckets[key]));
+            // readers never see the published entities change, the writer keeps its own copy
+            if (copy.put(nameKey, cell.toBuilder().build()) == null) {
+                nextSize++;
+            }
+        }
+        changed.forEach((bucket, copy) -> next[bucket] = Collections.unmodifiableMap(copy));
+        return new SheetSnapshot(version + 1, next, nextSize, nextStamp, nextSynced);
+    }
+
+    private static int bucket(String nameKey) {
+        return Math.floorMod(nameKey.hashCode(), BUCKETS);
+    }
+}
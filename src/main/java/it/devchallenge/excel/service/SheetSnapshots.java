@@ -0,0 +1,194 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.repository.CellRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Latest committed {@link SheetSnapshot} of the most recently used sheets. Snapshots are loaded by whole-sheet
+ * reads and replaced by the write batcher after every stored batch, readers take the current one without locking
+ * and keep using it while newer versions are published. Versions nobody uses anymore are left to the garbage
+ * collector. Before a snapshot is used its stamp is compared with the sheet version in Mongo and cells stored since,
+ * by this or any other instance, are loaded into a new version.
+ */
+@Slf4j
+@Component
+public class SheetSnapshots {
+    private final CellRepository cellRepository;
+    private final SheetVersions sheetVersions;
+    private final int maxCells;
+    private final Map<String, Entry> sheets;
+    private final Counter loads;
+    private final Counter refreshes;
+
+    public SheetSnapshots(CellRepository cellRepository,
+                          SheetVersions sheetVersions,
+                          MeterRegistry meterRegistry,
+                          @Value("${sheet.snapshot.max-cells:100000}") int maxCells,
+                          @Value("${sheet.snapshot.max-sheets:64}") int maxSheets) {
+        this.cellRepository = cellRepository;
+        this.sheetVersions = sheetVersions;
+        this.maxCells = maxCells;
+        // least recently used sheets are dropped first
+        this.sheets = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSheets;
+            }
+        });
+        this.loads = meterRegistry.counter("sheet.snapshot.loads");
+        this.refreshes = meterRegistry.counter("sheet.snapshot.refreshes");
+        meterRegistry.gaugeMapSize("sheet.snapshot.sheets", Tags.empty(), sheets);
+    }
+
+    /**
+     * @return the latest snapshot of the sheet, null if the sheet has too many cells to be kept in memory
+     */
+    public SheetSnapshot get(String sheetName) {
+        return get(sheetName, sheetVersions.current(sheetName));
+    }
+
+    /**
+     * Loads the sheet if it has no snapshot yet, used by reads that need every cell of the sheet anyway.
+     *
+     * @param stamp version of the sheet read after the caller started
+     * @return snapshot holding at least all cells stored up to the stamp, null if the sheet is too big
+     */
+    public SheetSnapshot get(String sheetName, SheetVersions.Stamp stamp) {
+        String sheetKey = CellEntity.normalize(sheetName);
+        Entry entry = sheets.computeIfAbsent(sheetKey, key -> new Entry());
+        if (entry.tooBig) {
+            return null;
+        }
+        SheetSnapshot snapshot = entry.snapshot.get();
+        if (snapshot == null) {
+            if (cellRepository.countBySheetKey(sheetKey) > maxCells) {
+                // cells are never removed, so the sheet stays too big
+                entry.tooBig = true;
+                return null;
+            }
+            SheetSnapshot loaded = SheetSnapshot.of(cellRepository.findAllBySheetKey(sheetKey), stamp);
+            loads.increment();
+            log.debug("Loaded snapshot of sheet {} with {} cells", sheetKey, loaded.size());
+            if (loaded.size() == 0 || entry.snapshot.compareAndSet(null, loaded)) {
+                return loaded;
+            }
+            snapshot = entry.snapshot.get();
+            if (snapshot == null) {
+                return loaded;
+            }
+        }
+        return refresh(sheetKey, entry, snapshot, stamp);
+    }
+
+    /**
+     * Never loads a sheet, used by reads of a few cells which are cheaper to fetch from Mongo.
+     *
+     * @return the snapshot of the sheet refreshed up to the stamp, null if no snapshot of the sheet is loaded
+     */
+    public SheetSnapshot peek(String sheetName, SheetVersions.Stamp stamp) {
+        return peek(sheetName, stamp, null);
+    }
+
+    private SheetSnapshot peek(String sheetName, SheetVersions.Stamp stamp, EvaluationTrace trace) {
+        String sheetKey = CellEntity.normalize(sheetName);
+        Entry entry = sheets.get(sheetKey);
+        SheetSnapshot snapshot = entry == null ? null : entry.snapshot.get();
+        return snapshot == null ? null : refresh(sheetKey, entry, snapshot, stamp, trace);
+    }
+
+    /**
+     * @see #peek(String, SheetVersions.Stamp)
+     */
+    public SheetSnapshot peek(String sheetName) {
+        return peek(sheetName, (EvaluationTrace) null);
+    }
+
+    /**
+     * @param trace records the version read and the refresh if they go to Mongo, may be null
+     * @see #peek(String, SheetVersions.Stamp)
+     */
+    public SheetSnapshot peek(String sheetName, EvaluationTrace trace) {
+        String sheetKey = CellEntity.normalize(sheetName);
+        Entry entry = sheets.get(sheetKey);
+        if (entry == null || entry.snapshot.get() == null) {
+            // no version read for sheets read from Mongo anyway
+            return null;
+        }
+        return peek(sheetKey, sheetVersions.current(sheetKey, trace), trace);
+    }
+
+    private SheetSnapshot refresh(String sheetKey, Entry entry, SheetSnapshot snapshot, SheetVersions.Stamp stamp) {
+        return refresh(sheetKey, entry, snapshot, stamp, null);
+    }
+
+    private SheetSnapshot refresh(String sheetKey, Entry entry, SheetSnapshot snapshot, SheetVersions.Stamp stamp,
+                                  EvaluationTrace trace) {
+        if (!stamp.isAfter(snapshot.getStamp())) {
+            return snapshot;
+        }
+
+        if (trace != null) {
+            trace.repositoryCall();
+        }
+        // cells stamped up to synced are in every later version too, so the changes fit any of them
+        List<CellEntity> changed = cellRepository.findAllBySheetKeyAndVersionGreaterThan(sheetKey, snapshot.getSynced());
+        refreshes.increment();
+        log.debug("Refreshed snapshot of sheet {} with {} cells", sheetKey, changed.size());
+        SheetSnapshot next = entry.update(latest -> latest.refresh(changed, stamp));
+        return next == null ? snapshot.refresh(changed, stamp) : next;
+    }
+
+    /**
+     * Publishes the next version of every loaded sheet of the stored cells. Called only after the cells are stored.
+     */
+    public void publish(Collection<CellEntity> cells) {
+        Map<String, List<CellEntity>> cellsBySheet = new HashMap<>();
+        cells.forEach(cell -> cellsBySheet.computeIfAbsent(CellEntity.normalize(cell.getSheetName()), key -> new ArrayList<>())
+                .add(cell));
+        cellsBySheet.forEach((sheetKey, sheetCells) -> {
+            Entry entry = sheets.get(sheetKey);
+            if (entry != null) {
+                entry.update(current -> current.with(sheetCells));
+            }
+        });
+    }
+
+    /**
+     * Drops every snapshot, e.g. after the database was replaced.
+     */
+    public void clear() {
+        sheets.clear();
+    }
+
+    private class Entry {
+        private final AtomicReference<SheetSnapshot> snapshot = new AtomicReference<>();
+        private volatile boolean tooBig;
+
+        /**
+         * @return the next version, null if there is no snapshot or it grew too big to be kept
+         */
+        private SheetSnapshot update(UnaryOperator<SheetSnapshot> next) {
+            return snapshot.updateAndGet(current -> {
+                if (current == null) {
+                    return null;
+                }
+                SheetSnapshot version = next.apply(current);
+                if (version.size() > maxCells) {
+                    tooBig = true;
+                    return null;
+                }
+                return version;
+            });
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.repository.SheetVersionRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Version of every sheet, kept in Mongo so that all instances see writes made by the others.
+ * Reads arriving while the version of a sheet is being read wait for that read's future and share its result,
+ * so a sheet costs at most one version read in flight no matter how many requests use it, and no lock is held
+ * while Mongo answers. The last version read is kept for the most recently used sheets only.
+ */
+@Component
+public class SheetVersions {
+    private final SheetVersionRepository sheetVersionRepository;
+    private final long maxStaleness;
+    private final Map<String, Read> reads;
+    private final Counter versionReads;
+
+    public SheetVersions(SheetVersionRepository sheetVersionRepository,
+                         MeterRegistry meterRegistry,
+                         @Value("${sheet.version.max-staleness:10ms}") Duration maxStaleness,
+                         @Value("${sheet.version.max-sheets:1024}") int maxSheets) {
+        this.sheetVersionRepository = sheetVersionRepository;
+        this.maxStaleness = maxStaleness.toNanos();
+        // least recently used sheets are dropped first, they are read from Mongo again on their next use
+        this.reads = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Read> eldest) {
+                return size() > maxSheets;
+            }
+        });
+        this.versionReads = meterRegistry.counter("sheet.version.reads");
+        meterRegistry.gaugeMapSize("sheet.version.sheets", Tags.empty(), reads);
+    }
+
+    /**
+     * @return the version read from Mongo after the call started, or at most max-staleness before it
+     */
+    public Stamp current(String sheetName) {
+        return current(sheetName, null);
+    }
+
+    /**
+     * @param trace records the version read if this call reads it from Mongo, may be null
+     * @see #current(String)
+     */
+    Stamp current(String sheetName, EvaluationTrace trace) {
+        String sheetKey = CellEntity.normalize(sheetName);
+        long arrival = System.nanoTime();
+        Read started = new Read();
+        Read read = reads.compute(sheetKey, (key, last) -> {
+            if (last != null && last.readAt - arrival >= -maxStaleness) {
+                return last;
+            }
+            started.readAt = System.nanoTime();
+            return started;
+        });
+        if (read != started) {
+            return await(read.stamp);
+        }
+
+        if (trace != null) {
+            trace.repositoryCall();
+        }
+        try {
+            Stamp stamp = sheetVersionRepository.findById(sheetKey)
+                    .map(version -> new Stamp(version.getReserved(), version.getCommitted()))
+                    .orElse(Stamp.NONE);
+            versionReads.increment();
+            started.stamp.complete(stamp);
+            return stamp;
+        } catch (RuntimeException | Error e) {
+            // the next read tries again
+            reads.remove(sheetKey, started);
+            started.stamp.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number cells of the next stored batch are stamped with
+     */
+    public long reserve(String sheetName) {
+        return sheetVersionRepository.reserve(CellEntity.normalize(sheetName));
+    }
+
+    /**
+     * Marks a reserved batch as stored or failed.
+     */
+    public void commit(String sheetName) {
+        sheetVersionRepository.commit(CellEntity.normalize(sheetName));
+        forget(sheetName);
+    }
+
+    /**
+     * Changes the version of a sheet whose cells are unchanged, but results are not, e.g. after a write to a
+     * sheet it references. Costs one round trip, as no cells are stamped in between.
+     */
+    public void bump(String sheetName) {
+        sheetVersionRepository.bump(CellEntity.normalize(sheetName));
+        forget(sheetName);
+    }
+
+    private void forget(String sheetName) {
+        // reads on this instance must see its own writes even if they accept stale versions
+        reads.remove(CellEntity.normalize(sheetName));
+    }
+
+    private static Stamp await(CompletableFuture<Stamp> stamp) {
+        try {
+            return stamp.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw (RuntimeException) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for sheet version", e);
+        }
+    }
+
+    /**
+     * Version read started at readAt, shared by the reads arriving until it is too old.
+     */
+    private static class Read {
+        private final CompletableFuture<Stamp> stamp = new CompletableFuture<>();
+        private long readAt;
+    }
+
+    /**
+     * @param reserved  number of batches started, the highest number cells of the sheet may be stamped with
+     * @param committed number of batches finished
+     */
+    public record Stamp(long reserved, long committed) {
+        public static final Stamp NONE = new Stamp(0, 0);
+
+        /**
+         * @return true if no batch was being written, i.e. all cells stamped up to reserved are stored
+         */
+        public boolean settled() {
+            return reserved == committed;
+        }
+
+        public boolean isAfter(Stamp other) {
+            return reserved > other.reserved || committed > other.committed;
+        }
+
+        public Stamp max(Stamp other) {
+            return new Stamp(Math.max(reserved, other.reserved), Math.max(committed, other.committed));
+        }
+    }
+}
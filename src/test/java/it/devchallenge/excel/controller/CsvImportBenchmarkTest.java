@@ -0,0 +1,114 @@
+package it.devchallenge.excel.controller;
+
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.reverse.TransitionWalker;
+import de.flapdoodle.reverse.transitions.Start;
+import it.devchallenge.excel.DevChallengeApplication;
+import it.devchallenge.excel.dto.ImportResponse;
+import it.devchallenge.excel.service.CsvImportService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mariuszgromada.math.mxparser.License;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Imports a generated sheet of 5,000,000 cells into a real mongod, run with {@code mvn test -Pbenchmark}.
+ * The mongod is downloaded and started by the test, unless {@code -Dbenchmark.mongo=host:port} names a running one.
+ */
+@Slf4j
+@Tag("benchmark")
+class CsvImportBenchmarkTest {
+    private static final int CELLS = 5_000_000;
+    private static final String EXTERNAL_MONGO = System.getProperty("benchmark.mongo");
+    private TransitionWalker.ReachedState<RunningMongodProcess> mongo;
+    private ConfigurableApplicationContext context;
+
+    @BeforeEach
+    void setup() {
+        License.iConfirmNonCommercialUse("testSignature");
+        String[] args = {};
+        if (EXTERNAL_MONGO == null) {
+            var mongod = Mongod.builder()
+                    .net(Start.to(Net.class).initializedWith(Net.defaults()
+                            .withPort(27018)))
+                    .build();
+            mongo = mongod.start(Version.Main.V6_0);
+        } else {
+            String[] address = EXTERNAL_MONGO.split(":");
+            args = new String[]{"--spring.data.mongodb.host=" + address[0],
+                    "--spring.data.mongodb.port=" + (address.length > 1 ? address[1] : "27017")};
+        }
+        context = new SpringApplicationBuilder(DevChallengeApplication.class).web(WebApplicationType.NONE).run(args);
+        // every run imports into an empty database
+        context.getBean(MongoTemplate.class).getDb().drop();
+    }
+
+    @AfterEach
+    void clean() {
+        context.close();
+        if (mongo != null) {
+            mongo.close();
+        }
+    }
+
+    @Test
+    void importOfFiveMillionCells() throws IOException {
+        ImportResponse response = context.getBean(CsvImportService.class)
+                .importCsv("benchmark", new GeneratedCsv(CELLS), CsvImportService.Layout.CELLS);
+
+        log.info("Imported {} cells in {} ms, {} cells/s", response.getImported(), response.getMillis(),
+                response.getCellsPerSecond());
+        assertThat(response.getImported()).isEqualTo(CELLS);
+        assertThat(response.getFailed()).isZero();
+    }
+
+    /**
+     * name,value records generated while they are read, every fifth cell is a formula using the two cells before it.
+     */
+    private static class GeneratedCsv extends Reader {
+        private final int cells;
+        private int next;
+        private String record = "";
+        private int position;
+
+        private GeneratedCsv(int cells) {
+            this.cells = cells;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == record.length()) {
+                if (next == cells) {
+                    return -1;
+                }
+                record = next % 5 == 4
+                        ? "var%d,=var%d+var%d*2\n".formatted(next, next - 1, next - 2)
+                        : "var%d,%d\n".formatted(next, next);
+                position = 0;
+                next++;
+            }
+            int count = Math.min(length, record.length() - position);
+            record.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
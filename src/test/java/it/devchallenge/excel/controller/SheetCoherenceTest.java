@@ -0,0 +1,102 @@
+package it.devchallenge.excel.controller;
+
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.reverse.TransitionWalker;
+import de.flapdoodle.reverse.transitions.Start;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.devchallenge.excel.DevChallengeApplication;
+import it.devchallenge.excel.dto.AddCellRequest;
+import it.devchallenge.excel.dto.CellResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mariuszgromada.math.mxparser.License;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// two instances sharing one Mongo, each with its own sheet snapshots
+class SheetCoherenceTest {
+    private TransitionWalker.ReachedState<RunningMongodProcess> mongo;
+    private ConfigurableApplicationContext first;
+    private ConfigurableApplicationContext second;
+
+    @BeforeEach
+    void setup() {
+        License.iConfirmNonCommercialUse("testSignature");
+        var mongod = Mongod.builder()
+                .net(Start.to(Net.class).initializedWith(Net.defaults()
+                        .withPort(27018)))
+                .build();
+
+        mongo = mongod.start(Version.Main.V6_0);
+        // every read checks the version, so writes of the other instance are seen right away
+        first = new SpringApplicationBuilder(DevChallengeApplication.class).web(WebApplicationType.NONE)
+                .properties("sheet.version.max-staleness=0ms").run();
+        second = new SpringApplicationBuilder(DevChallengeApplication.class).web(WebApplicationType.NONE)
+                .properties("sheet.version.max-staleness=0ms").run();
+    }
+
+    @AfterEach
+    void clean() {
+        first.close();
+        second.close();
+        mongo.close();
+    }
+
+    @Test
+    void writeOnOneInstanceShouldBeReadOnTheOther() {
+        var firstController = first.getBean(SheetController.class);
+        var secondController = second.getBean(SheetController.class);
+        assertThat(firstController.addCell("coherence", "var1", new AddCellRequest("1")).getStatusCode())
+                .isEqualTo(HttpStatus.CREATED);
+        assertThat(firstController.addCell("coherence", "var2", new AddCellRequest("=var1+1")).getStatusCode())
+                .isEqualTo(HttpStatus.CREATED);
+
+        // the second instance keeps the loaded snapshot and refreshes it with the writes of the first
+        assertThat(((Map<?, ?>) secondController.getSheet("coherence", null, null, null, null).getBody())).hasSize(2);
+        assertThat(getResult(secondController, "var2")).isEqualTo("2");
+        firstController.addCell("coherence", "var1", new AddCellRequest("5"));
+        assertThat(getResult(secondController, "var2")).isEqualTo("6");
+        assertThat(((Map<?, ?>) secondController.getSheet("coherence", null, null, null, null).getBody())).hasSize(2);
+
+        // and the other way round
+        secondController.addCell("coherence", "var3", new AddCellRequest("=var2+var1"));
+        assertThat(getResult(firstController, "var3")).isEqualTo("11");
+
+        var meterRegistry = second.getBean(MeterRegistry.class);
+        assertThat(meterRegistry.counter("sheet.snapshot.loads").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("sheet.snapshot.refreshes").count()).isGreaterThanOrEqualTo(1);
+    }
+
+    @Test
+    void writeToReferencedSheetShouldBeReadOnTheOtherInstance() {
+        var firstController = first.getBean(SheetController.class);
+        var secondController = second.getBean(SheetController.class);
+        firstController.addCell("rates", "tax", new AddCellRequest("2"));
+        firstController.addCell("orders", "total", new AddCellRequest("=rates!tax*10"));
+        assertThat(getResult(secondController, "orders", "total")).isEqualTo("20");
+
+        firstController.addCell("rates", "tax", new AddCellRequest("3"));
+
+        assertThat(getResult(secondController, "orders", "total")).isEqualTo("30");
+    }
+
+    private String getResult(SheetController controller, String cellName) {
+        return getResult(controller, "coherence", cellName);
+    }
+
+    private String getResult(SheetController controller, String sheetName, String cellName) {
+        var res = controller.getCell(sheetName, cellName);
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
+        return ((CellResponse) res.getBody()).getResult();
+    }
+}
@@ -0,0 +1,67 @@
+package it.devchallenge.excel.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import it.devchallenge.excel.dto.ScenarioRequest;
+import it.devchallenge.excel.dto.ScenarioResponse;
+import it.devchallenge.excel.service.CsvImportService;
+import it.devchallenge.excel.service.ScenarioService;
+import it.devchallenge.excel.service.SheetService;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks which endpoint a request is mapped to, services are mocked so no Mongo is needed.
+ */
+public class SheetControllerRoutingTest {
+    private final SheetService sheetService = mock(SheetService.class);
+    private final ScenarioService scenarioService = mock(ScenarioService.class);
+    private final CsvImportService csvImportService = mock(CsvImportService.class);
+    private final MockMvc mockMvc = MockMvcBuilders.standaloneSetup(
+            new SheetController(sheetService, scenarioService, csvImportService, new ObjectMapper())).build();
+
+    @Test
+    void scenariosShouldNeedTheirParameter() throws Exception {
+        var request = new ScenarioRequest(List.of("var1"), List.of("var2"), List.of(List.of(1.0)));
+        when(scenarioService.evaluate(eq("devchallenge-xx"), any())).thenReturn(ScenarioResponse.builder()
+                .outputs(List.of("var2"))
+                .results(List.of(List.of("1")))
+                .build());
+
+        mockMvc.perform(post("/api/v1/devchallenge-xx")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(new ObjectMapper().writeValueAsBytes(request)))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(post("/api/v1/devchallenge-xx")
+                        .contentType("application/cbor")
+                        .content(new CBORMapper().writeValueAsBytes(request)))
+                .andExpect(status().isBadRequest());
+        verifyNoInteractions(scenarioService, csvImportService);
+
+        mockMvc.perform(post("/api/v1/devchallenge-xx?scenarios")
+                        .contentType("application/cbor")
+                        .content(new CBORMapper().writeValueAsBytes(request)))
+                .andExpect(status().isOk());
+        verify(scenarioService).evaluate(eq("devchallenge-xx"), any());
+    }
+
+    @Test
+    void csvShouldBeImported() throws Exception {
+        mockMvc.perform(post("/api/v1/devchallenge-xx")
+                        .contentType("text/csv")
+                        .content("var1,1\n"))
+                .andExpect(status().isCreated());
+        verify(csvImportService).importCsv(eq("devchallenge-xx"), any(), eq(CsvImportService.Layout.CELLS));
+        verifyNoInteractions(scenarioService);
+    }
+}
@@ -8,17 +8,36 @@ import de.flapdoodle.reverse.TransitionWalker;
 import de.flapdoodle.reverse.transitions.Start;
 import it.devchallenge.excel.dto.AddCellRequest;
 import it.devchallenge.excel.dto.CellResponse;
+import it.devchallenge.excel.dto.ExplainResponse;
+import it.devchallenge.excel.dto.ImportResponse;
+import it.devchallenge.excel.dto.SheetPageResponse;
+import it.devchallenge.excel.exceptions.CalculationException;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.repository.CellKeysMigration;
+import it.devchallenge.excel.repository.CellRepository;
+import it.devchallenge.excel.service.SheetService;
+import it.devchallenge.excel.service.SheetSnapshots;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mariuszgromada.math.mxparser.License;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.http.HttpStatus;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 
 @SpringBootTest
@@ -34,6 +53,8 @@ class SheetControllerTest {
                 .build();
 
         mongo = mongod.start(Version.Main.V6_0);
+        // every test starts a new Mongo, no snapshot of the previous one may be read
+        sheetSnapshots.clear();
     }
 
     @AfterEach
@@ -45,6 +66,21 @@ class SheetControllerTest {
     @Autowired
     private SheetController controller;
 
+    @Autowired
+    private SheetService sheetService;
+
+    @Autowired
+    private SheetSnapshots sheetSnapshots;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private CellKeysMigration cellKeysMigration;
+
+    @Autowired
+    private CellRepository cellRepository;
+
     @Test
     void devChallengeExampleTest() {
         // Add cells
@@ -105,7 +141,7 @@ class SheetControllerTest {
         assertThat(((CellResponse)res.getBody()).getResult()).isEqualTo("3");
 
         //Get sheet
-        res = controller.getSheet("devchallenge-xx");
+        res = controller.getSheet("devchallenge-xx", null, null, null, null);
         assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
         assertThat(res.getBody()).isNotNull();
         Map<String, CellResponse> body = (Map<String, CellResponse>) res.getBody();
@@ -118,7 +154,7 @@ class SheetControllerTest {
         assertThat(body.get("var3").getResult()).isEqualTo("3");
 
         //Get sheet case insensitive
-        res = controller.getSheet("devchallenge-XX");
+        res = controller.getSheet("devchallenge-XX", null, null, null, null);
         assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
         assertThat(res.getBody()).isNotNull();
         body = (Map<String, CellResponse>) res.getBody();
@@ -262,6 +298,236 @@ class SheetControllerTest {
         assertThat(((CellResponse) res.getBody()).getResult()).isEqualTo("ERROR");
     }
 
+    @Test
+    void getSheetPageTest() {
+        controller.addCell("devchallenge-xx", "a1", new AddCellRequest("1"));
+        controller.addCell("devchallenge-xx", "A2", new AddCellRequest("2"));
+        controller.addCell("devchallenge-xx", "a3", new AddCellRequest("=a1+a2"));
+        controller.addCell("devchallenge-xx", "b1", new AddCellRequest("str"));
+
+        // First page
+        var res = controller.getSheet("devchallenge-xx", 2, null, "a", null);
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(res.getBody()).isNotNull();
+        SheetPageResponse page = (SheetPageResponse) res.getBody();
+        assertThat(page.getCells().keySet()).containsExactly("a1", "A2");
+        assertThat(page.getCells().get("A2").getValue()).isEqualTo("2");
+        assertThat(page.getCells().get("A2").getResult()).isEqualTo("2");
+        assertThat(page.getNextCursor()).isNotNull();
+
+        // Last page with projection
+        res = controller.getSheet("devchallenge-xx", 2, page.getNextCursor(), "a", Set.of("result"));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(res.getBody()).isNotNull();
+        page = (SheetPageResponse) res.getBody();
+        assertThat(page.getCells().keySet()).containsExactly("a3");
+        assertThat(page.getCells().get("a3").getValue()).isNull();
+        assertThat(page.getCells().get("a3").getResult()).isEqualTo("3");
+        assertThat(page.getNextCursor()).isNull();
+
+        // Not matching prefix
+        res = controller.getSheet("devchallenge-xx", null, null, "c", null);
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(((SheetPageResponse) res.getBody()).getCells()).isEmpty();
+
+        // Not existing sheet
+        res = controller.getSheet("devchallenge-yy", 2, null, null, null);
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+
+        // Unknown field
+        res = controller.getSheet("devchallenge-xx", 2, null, null, Set.of("unknown"));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    void referencedFormulaShouldKeepItsPrecedenceTest() {
+        controller.addCell("devchallenge-xx", "a", new AddCellRequest("=1+2"));
+        var res = controller.addCell("devchallenge-xx", "b", new AddCellRequest("=a*3"));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        // (1+2)*3, not 1+2*3
+        assertThat(((CellResponse) res.getBody()).getResult()).isEqualTo("9");
+
+        res = controller.getCell("devchallenge-xx", "b");
+        assertThat(((CellResponse) res.getBody()).getResult()).isEqualTo("9");
+
+        controller.addCell("devchallenge-xx", "a", new AddCellRequest("=2+2"));
+        res = controller.getSheet("devchallenge-xx", null, null, null, null);
+        assertThat(((Map<String, CellResponse>) res.getBody()).get("b").getResult()).isEqualTo("12");
+    }
+
+    @Test
+    void getCellsTest() {
+        controller.addCell("devchallenge-xx", "var1", new AddCellRequest("1"));
+        controller.addCell("devchallenge-xx", "var2", new AddCellRequest("=var1+1"));
+        controller.addCell("devchallenge-xx", "var3", new AddCellRequest("=var2*var1"));
+        controller.addCell("devchallenge-xx", "var4", new AddCellRequest("=var3+var2"));
+
+        var res = controller.getCells("devchallenge-XX", List.of("VAR4", "var3", "var5"));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(res.getBody()).isNotNull();
+        Map<String, CellResponse> body = (Map<String, CellResponse>) res.getBody();
+
+        assertThat(body).containsOnlyKeys("var4", "var3");
+        assertThat(body.get("var4").getValue()).isEqualTo("=var3+var2");
+        assertThat(body.get("var4").getResult()).isEqualTo("4");
+        assertThat(body.get("var3").getValue()).isEqualTo("=var2*var1");
+        assertThat(body.get("var3").getResult()).isEqualTo("2");
+
+        res = controller.getCells("devchallenge-xx", List.of("var5"));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    @Test
+    void streamSheetTest() throws IOException {
+        controller.addCell("devchallenge-xx", "var1", new AddCellRequest("1"));
+        controller.addCell("devchallenge-xx", "var2", new AddCellRequest("2"));
+        controller.addCell("devchallenge-xx", "var3", new AddCellRequest("=var1+var2"));
+
+        // NDJSON
+        var res = controller.streamSheet("devchallenge-XX", "ndjson");
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(res.getBody()).isNotNull();
+        var out = new ByteArrayOutputStream();
+        res.getBody().writeTo(out);
+        assertThat(out.toString(StandardCharsets.UTF_8).lines()).containsExactly(
+                "{\"name\":\"var1\",\"value\":\"1\",\"result\":\"1\"}",
+                "{\"name\":\"var2\",\"value\":\"2\",\"result\":\"2\"}",
+                "{\"name\":\"var3\",\"value\":\"=var1+var2\",\"result\":\"3\"}");
+
+        // JSON object
+        res = controller.streamSheet("devchallenge-xx", "json");
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(res.getBody()).isNotNull();
+        out = new ByteArrayOutputStream();
+        res.getBody().writeTo(out);
+        assertThat(out.toString(StandardCharsets.UTF_8)).isEqualTo(
+                "{\"var1\":{\"value\":\"1\",\"result\":\"1\"}," +
+                "\"var2\":{\"value\":\"2\",\"result\":\"2\"}," +
+                "\"var3\":{\"value\":\"=var1+var2\",\"result\":\"3\"}}");
+
+        // Not existing sheet
+        res = controller.streamSheet("devchallenge-yy", "ndjson");
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+
+        // Unknown format
+        res = controller.streamSheet("devchallenge-xx", "csv");
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    void importCsvTest() throws IOException {
+        controller.addCell("devchallenge-xx", "var1", new AddCellRequest("1"));
+
+        var res = controller.importCsv("devchallenge-xx", "cells", new ByteArrayInputStream(
+                "name,value\nvar3,=var1+var2\nvar1,5\nvar2,\"2\"\nvar4,=var5\n".getBytes(StandardCharsets.UTF_8)));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        ImportResponse response = (ImportResponse) res.getBody();
+        assertThat(response).isNotNull();
+        assertThat(response.getImported()).isEqualTo(4);
+        assertThat(response.getFailed()).isEqualTo(1);
+        assertThat(response.getErrors()).hasSize(1);
+        assertThat(((CellResponse) controller.getCell("devchallenge-xx", "var3").getBody()).getResult()).isEqualTo("7");
+        assertThat(((Map<?, ?>) controller.getSheet("devchallenge-xx", null, null, null, null).getBody())).hasSize(4);
+
+        res = controller.importCsv("grid", "grid", new ByteArrayInputStream("1,2\n=A1+B1\n".getBytes(StandardCharsets.UTF_8)));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(((CellResponse) controller.getCell("grid", "A2").getBody()).getResult()).isEqualTo("3");
+
+        res = controller.importCsv("grid", "rows", new ByteArrayInputStream(new byte[0]));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    void crossSheetReferenceTest() {
+        controller.addCell("rates", "vat", new AddCellRequest("0.2"));
+        controller.addCell("orders", "price", new AddCellRequest("100"));
+        var res = controller.addCell("orders", "tax", new AddCellRequest("=price*Rates!VAT"));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(((CellResponse) res.getBody()).getResult()).isEqualTo("20");
+
+        // Cached results of the dependent sheet are refreshed
+        assertThat(controller.getSheet("orders", null, null, null, null).getBody()).isNotNull();
+        res = controller.addCell("rates", "vat", new AddCellRequest("0.1"));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(((Map<String, CellResponse>) controller.getSheet("orders", null, null, null, null).getBody()).get("tax").getResult())
+                .isEqualTo("10");
+
+        // Changes breaking formulas of other sheets are rejected
+        res = controller.addCell("rates", "vat", new AddCellRequest("str"));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY);
+
+        // Cycles through other sheets are rejected: orders!tax exists, it only uses rates!vat
+        res = controller.addCell("rates", "vat", new AddCellRequest("=orders!tax"));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY);
+        assertThat(((CellResponse) res.getBody()).getResult()).isEqualTo("ERROR");
+        assertThat(((CellResponse) controller.getCell("rates", "vat").getBody()).getValue()).isEqualTo("0.1");
+        var exception = assertThrows(CalculationException.class,
+                () -> sheetService.addCell("rates", "vat", "=orders!tax"));
+        assertThat(exception.getMessage()).isEqualTo("Recursive formula");
+
+        // the same sheet without the cycle is accepted
+        res = controller.addCell("rates", "vat", new AddCellRequest("=orders!price/1000"));
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(((CellResponse) controller.getCell("orders", "tax").getBody()).getResult()).isEqualTo("10");
+    }
+
+    @Test
+    void explainCellTest() {
+        controller.addCell("devchallenge-xx", "var1", new AddCellRequest("1"));
+        controller.addCell("devchallenge-xx", "var2", new AddCellRequest("=var1+1"));
+        controller.addCell("devchallenge-xx", "var3", new AddCellRequest("=var1+var2"));
+
+        // without a snapshot of the sheet the cells are read from Mongo
+        var res = controller.explainCell("devchallenge-xx", "VAR3");
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
+        var explain = (ExplainResponse) res.getBody();
+        assertThat(explain.getResult()).isEqualTo("3");
+        assertThat(explain.getRepositoryCalls()).isPositive();
+        assertThat(explain.getTree().getSource()).isEqualTo("storage");
+
+        controller.getSheet("devchallenge-xx", null, null, null, null);
+        res = controller.explainCell("devchallenge-xx", "VAR3");
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
+        explain = (ExplainResponse) res.getBody();
+        assertThat(explain.getResult()).isEqualTo("3");
+        // no cell is loaded, only the sheet version is read unless the one read by getSheet is still fresh
+        assertThat(explain.getRepositoryCalls()).isLessThanOrEqualTo(1);
+        assertThat(explain.getTree().getSource()).isEqualTo("snapshot");
+        assertThat(explain.getTree().getChildren()).extracting(ExplainResponse.Node::getCell)
+                .containsExactly("devchallenge-xx!var1", "devchallenge-xx!var2");
+
+        res = controller.explainCell("devchallenge-xx", "var4");
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    @Test
+    void cellsStoredWithoutKeysShouldBeMigratedTest() {
+        // a cell stored before sheetKey and nameKey were added
+        mongoTemplate.insert(CellEntity.builder().name("Var1").sheetName("Legacy").value("1")
+                .type(CellEntity.CellType.DIGIT).build());
+        mongoTemplate.updateMulti(new Query(), new Update().unset("sheetKey").unset("nameKey"), CellEntity.class);
+        assertThat(controller.getSheet("legacy", null, null, null, null).getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+
+        cellKeysMigration.migrate();
+        assertThat(cellKeysMigration.migrate()).isZero();
+
+        var res = controller.getSheet("legacy", null, null, null, null);
+        assertThat(res.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(((Map<String, CellResponse>) res.getBody()).get("Var1").getResult()).isEqualTo("1");
+    }
+
+    @Test
+    void olderWriteShouldNotReplaceNewerCellTest() {
+        // e.g. a batch of another instance stamped with a higher version was stored first
+        CellEntity newer = CellEntity.builder().name("var1").sheetName("versions").value("2")
+                .type(CellEntity.CellType.DIGIT).version(5).build();
+        cellRepository.bulkUpsert(List.of(newer));
+
+        cellRepository.bulkUpsert(List.of(newer.toBuilder().value("1").version(3).build()));
+
+        assertThat(cellRepository.findById(newer.getId()).orElseThrow().getValue()).isEqualTo("2");
+    }
+
     @Test
     void getNotExistingCellTest() {
         var res = controller.getCell("devchallenge-xx", "var1");
@@ -272,7 +538,7 @@ class SheetControllerTest {
 
     @Test
     void getNotExistingSheetTest() {
-        var res = controller.getSheet("devchallenge-xx");
+        var res = controller.getSheet("devchallenge-xx", null, null, null, null);
 
         assertThat(res.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
         assertThat(res.getBody()).isNull();
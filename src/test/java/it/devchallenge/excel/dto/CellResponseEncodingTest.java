@@ -0,0 +1,106 @@
+package it.devchallenge.excel.dto;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.http.HttpMessageConverters;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Slf4j
+public class CellResponseEncodingTest {
+    private final ObjectMapper json = new ObjectMapper();
+    private final ObjectMapper cbor = new ObjectMapper(new CBORFactory());
+    private final ObjectMapper smile = new ObjectMapper(new SmileFactory());
+
+    @Test
+    public void binaryConvertersShouldBeRegistered() {
+        var converters = new HttpMessageConverters().getConverters();
+
+        assertThat(converters).hasAtLeastOneElementOfType(MappingJackson2CborHttpMessageConverter.class);
+        assertThat(converters).hasAtLeastOneElementOfType(MappingJackson2SmileHttpMessageConverter.class);
+    }
+
+    @Test
+    public void binaryEncodingShouldRoundTrip() throws IOException {
+        Map<String, CellResponse> sheet = new LinkedHashMap<>();
+        sheet.put("var1", CellResponse.builder().value("1").result("1").build());
+        sheet.put("var2", CellResponse.builder().value("=var1+1").result("2").build());
+
+        for (ObjectMapper mapper : new ObjectMapper[]{cbor, smile}) {
+            var decoded = mapper.readTree(mapper.writeValueAsBytes(sheet));
+            assertThat(decoded).isEqualTo(json.readTree(json.writeValueAsBytes(sheet)));
+
+            var request = mapper.readValue(mapper.writeValueAsBytes(new AddCellRequest("=var1+1")), AddCellRequest.class);
+            assertThat(request.getValue()).isEqualTo("=var1+1");
+        }
+    }
+
+    @Test
+    public void binaryEncodingShouldBeSmallerThanJson() throws IOException {
+        assertSmallerThanJson(10_000);
+    }
+
+    /**
+     * Compares size and time of the formats for a big sheet, run with {@code mvn test -Pbenchmark}.
+     */
+    @Test
+    @Tag("benchmark")
+    public void binaryEncodingOfMillionCellsShouldBeSmallerThanJson() throws IOException {
+        assertSmallerThanJson(1_000_000);
+    }
+
+    /**
+     * Encodes a generated sheet without keeping it in memory.
+     */
+    private void assertSmallerThanJson(int cells) throws IOException {
+        long jsonBytes = encode(json, "json", cells);
+        long cborBytes = encode(cbor, "cbor", cells);
+        long smileBytes = encode(smile, "smile", cells);
+
+        assertThat(cborBytes).isLessThan(jsonBytes);
+        assertThat(smileBytes).isLessThan(jsonBytes);
+    }
+
+    private long encode(ObjectMapper mapper, String format, int cells) throws IOException {
+        var out = new CountingOutputStream();
+        long start = System.nanoTime();
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            generator.writeStartObject();
+            for (int i = 0; i < cells; i++) {
+                generator.writeFieldName("var" + i);
+                generator.writeObject(i % 2 == 0
+                        ? CellResponse.builder().value(String.valueOf(i)).result(String.valueOf(i)).build()
+                        : CellResponse.builder().value("=var%d*2".formatted(i - 1)).result(String.valueOf((i - 1) * 2)).build());
+            }
+            generator.writeEndObject();
+        }
+        log.info("{} cells {}: {} bytes, {} ms", cells, format, out.count, (System.nanoTime() - start) / 1_000_000);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.devchallenge.excel.exceptions.OverloadedException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AdmissionControllerTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AdmissionController admissionController = new AdmissionController(meterRegistry,
+            10, 6, 1, 1, Duration.ofMillis(50), Duration.ofMillis(50), Duration.ofSeconds(2));
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @Test
+    public void writeOverSheetLimitShouldBeRejected() {
+        try (var permit = admissionController.admitWrite("sheet1", 4)) {
+            var exception = assertThrows(OverloadedException.class, () -> admissionController.admitWrite("Sheet1", 3));
+            assertThat(exception.getRetryAfter()).isEqualTo(Duration.ofSeconds(2));
+            // other sheets still have permits
+            admissionController.admitWrite("sheet2", 3).close();
+        }
+        admissionController.admitWrite("sheet1", 3).close();
+        assertThat(meterRegistry.counter("sheet.admission.rejected", "lane", "write").count()).isEqualTo(1);
+    }
+
+    @Test
+    public void writeOverGlobalLimitShouldBeRejected() {
+        try (var first = admissionController.admitWrite("sheet1", 6);
+             var second = admissionController.admitWrite("sheet2", 3)) {
+            assertThrows(OverloadedException.class, () -> admissionController.admitWrite("sheet3", 2));
+        }
+        // rejected write released the permits of its sheet
+        admissionController.admitWrite("sheet3", 6).close();
+    }
+
+    @Test
+    public void expensiveWriteShouldBeCappedToSheetLimit() {
+        admissionController.admitWrite("sheet1", 10_000).close();
+        assertThat(meterRegistry.get("sheet.admission.write.cost").summary().max()).isEqualTo(10_000);
+    }
+
+    @Test
+    public void queuedWriteShouldBeAdmittedWhenPermitsAreReleased() throws Exception {
+        var meterRegistry = new SimpleMeterRegistry();
+        var admissionController = new AdmissionController(meterRegistry,
+                10, 6, 1, 1, Duration.ofSeconds(5), Duration.ofMillis(50), Duration.ofSeconds(1));
+        var permit = admissionController.admitWrite("sheet1", 6);
+        Future<?> queued = executor.submit(() -> admissionController.admitWrite("sheet1", 1).close());
+        while (meterRegistry.get("sheet.admission.waiting").tag("lane", "write").gauge().value() == 0) {
+            Thread.onSpinWait();
+        }
+        permit.close();
+        queued.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void sheetPermitsShouldBeDroppedOnceReleased() {
+        try (var permit = admissionController.admitWrite("sheet1", 6)) {
+            // another sheet never waits for the permits of sheet1
+            try (var otherPermit = admissionController.admitWrite("sheet2", 3)) {
+                assertThat(meterRegistry.get("sheet.admission.sheets").gauge().value()).isEqualTo(2);
+                assertThat(meterRegistry.get("sheet.admission.available").tag("lane", "write").gauge().value()).isEqualTo(1);
+            }
+            assertThrows(OverloadedException.class, () -> admissionController.admitWrite("sheet1", 1));
+            assertThat(meterRegistry.get("sheet.admission.sheets").gauge().value()).isEqualTo(1);
+        }
+        assertThat(meterRegistry.get("sheet.admission.sheets").gauge().value()).isZero();
+        assertThat(meterRegistry.get("sheet.admission.available").tag("lane", "write").gauge().value()).isEqualTo(10);
+    }
+
+    @Test
+    public void readsShouldNotWaitForWrites() {
+        try (var write = admissionController.admitWrite("sheet1", 6);
+             var otherWrite = admissionController.admitWrite("sheet2", 4)) {
+            admissionController.admitRead().close();
+        }
+        try (var read = admissionController.admitRead()) {
+            assertThrows(OverloadedException.class, admissionController::admitRead);
+        }
+        assertThat(meterRegistry.counter("sheet.admission.rejected", "lane", "read").count()).isEqualTo(1);
+    }
+
+    @Test
+    public void pointReadsShouldNotWaitForScans() {
+        try (var scan = admissionController.admitScan()) {
+            assertThrows(OverloadedException.class, admissionController::admitScan);
+            admissionController.admitRead().close();
+        }
+        assertThat(meterRegistry.counter("sheet.admission.rejected", "lane", "scan").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("sheet.admission.rejected", "lane", "read").count()).isZero();
+        assertThat(meterRegistry.get("sheet.admission.available").tag("lane", "scan").gauge().value()).isEqualTo(1);
+    }
+}
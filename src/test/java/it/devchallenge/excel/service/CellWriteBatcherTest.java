@@ -0,0 +1,147 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.repository.CellRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class CellWriteBatcherTest {
+    private final CellRepository cellRepository = mock(CellRepository.class);
+    private final SheetVersions sheetVersions = mock(SheetVersions.class);
+    private final SheetSnapshots sheetSnapshots = mock(SheetSnapshots.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private CellWriteBatcher cellWriteBatcher;
+
+    @AfterEach
+    void clean() throws InterruptedException {
+        executor.shutdownNow();
+        cellWriteBatcher.close();
+    }
+
+    @Test
+    public void writesWithinWindowShouldBeStoredInOneBatch() throws Exception {
+        cellWriteBatcher = new CellWriteBatcher(cellRepository, sheetVersions, sheetSnapshots, meterRegistry, Duration.ofMillis(500), 8, Duration.ofSeconds(5));
+        CountDownLatch ready = new CountDownLatch(8);
+        List<Future<?>> writes = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            CellEntity cell = getCell("cell" + i);
+            writes.add(executor.submit(() -> {
+                // all writes start together, well within one window
+                ready.countDown();
+                ready.await();
+                cellWriteBatcher.save(cell);
+                return null;
+            }));
+        }
+        for (Future<?> write : writes) {
+            write.get(5, TimeUnit.SECONDS);
+        }
+
+        ArgumentCaptor<List<CellEntity>> argumentCaptor = ArgumentCaptor.forClass(List.class);
+        verify(cellRepository, atLeastOnce()).bulkUpsert(argumentCaptor.capture());
+        assertThat(argumentCaptor.getAllValues().stream().mapToInt(List::size).sum()).isEqualTo(8);
+        assertThat(argumentCaptor.getAllValues().size()).isLessThan(8);
+        assertThat(meterRegistry.get("sheet.write.batch.size").summary().totalAmount()).isEqualTo(8);
+    }
+
+    @Test
+    public void sameCellShouldBeStoredOncePerBatch() {
+        cellWriteBatcher = new CellWriteBatcher(cellRepository, sheetVersions, sheetSnapshots, meterRegistry, Duration.ZERO, 8, Duration.ofSeconds(5));
+        when(sheetVersions.reserve("testsheet")).thenReturn(3L);
+        CellEntity cell = getCell("cell1");
+
+        cellWriteBatcher.save(cell, cell);
+
+        ArgumentCaptor<List<CellEntity>> argumentCaptor = ArgumentCaptor.forClass(List.class);
+        var inOrder = inOrder(sheetVersions, cellRepository, sheetSnapshots);
+        inOrder.verify(sheetVersions).reserve("testsheet");
+        inOrder.verify(cellRepository).bulkUpsert(argumentCaptor.capture());
+        inOrder.verify(sheetVersions).commit("testsheet");
+        inOrder.verify(sheetSnapshots).publish(List.of(cell));
+        assertThat(argumentCaptor.getValue()).containsExactly(cell);
+        assertThat(cell.getVersion()).isEqualTo(3);
+    }
+
+    @Test
+    public void writesCreatingTheSameCellShouldStoreItOnce() {
+        cellWriteBatcher = new CellWriteBatcher(cellRepository, sheetVersions, sheetSnapshots, meterRegistry, Duration.ZERO, 8, Duration.ofSeconds(5));
+        CellEntity first = getCell("cell1");
+        CellEntity second = CellEntity.builder().sheetName("TestSheet").name("CELL1").value("2").type(CellEntity.CellType.DIGIT).build();
+        var firstId = first.getId();
+
+        cellWriteBatcher.save(first, second);
+
+        ArgumentCaptor<List<CellEntity>> argumentCaptor = ArgumentCaptor.forClass(List.class);
+        verify(cellRepository).bulkUpsert(argumentCaptor.capture());
+        assertThat(argumentCaptor.getValue()).containsExactly(second);
+        assertThat(second.getId()).isEqualTo(firstId);
+    }
+
+    @Test
+    public void failedBatchShouldFailTheWrite() {
+        cellWriteBatcher = new CellWriteBatcher(cellRepository, sheetVersions, sheetSnapshots, meterRegistry, Duration.ZERO, 8, Duration.ofSeconds(5));
+        doThrow(new IllegalStateException("Mongo is down")).when(cellRepository).bulkUpsert(any());
+
+        Exception exception = assertThrows(IllegalStateException.class, () -> cellWriteBatcher.save(getCell("cell1")));
+        assertThat(exception.getMessage()).isEqualTo("Mongo is down");
+        verify(sheetVersions).commit("testsheet");
+        verify(sheetSnapshots, never()).publish(any());
+    }
+
+    @Test
+    public void errorShouldFailTheWriteAndKeepTheFlusherRunning() {
+        cellWriteBatcher = new CellWriteBatcher(cellRepository, sheetVersions, sheetSnapshots, meterRegistry, Duration.ZERO, 8, Duration.ofSeconds(5));
+        doThrow(new StackOverflowError()).doNothing().when(cellRepository).bulkUpsert(any());
+
+        Exception exception = assertThrows(IllegalStateException.class, () -> cellWriteBatcher.save(getCell("cell1")));
+        assertThat(exception.getCause()).isInstanceOf(StackOverflowError.class);
+        cellWriteBatcher.save(getCell("cell2"));
+        verify(cellRepository, times(2)).bulkUpsert(any());
+    }
+
+    @Test
+    public void writeShouldNotWaitLongerThanTimeout() throws InterruptedException {
+        cellWriteBatcher = new CellWriteBatcher(cellRepository, sheetVersions, sheetSnapshots, meterRegistry, Duration.ZERO, 8, Duration.ofMillis(100));
+        CountDownLatch stored = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            stored.await();
+            return null;
+        }).when(cellRepository).bulkUpsert(any());
+
+        Exception exception = assertThrows(IllegalStateException.class, () -> cellWriteBatcher.save(getCell("cell1")));
+        assertThat(exception.getMessage()).isEqualTo("Cells weren't stored within PT0.1S");
+        stored.countDown();
+    }
+
+    @Test
+    public void writeAfterCloseShouldBeRejected() throws InterruptedException {
+        cellWriteBatcher = new CellWriteBatcher(cellRepository, sheetVersions, sheetSnapshots, meterRegistry, Duration.ZERO, 8, Duration.ofSeconds(5));
+        cellWriteBatcher.close();
+
+        Exception exception = assertThrows(IllegalStateException.class, () -> cellWriteBatcher.save(getCell("cell1")));
+        assertThat(exception.getMessage()).isEqualTo("Cell write batcher is closed");
+        verify(cellRepository, never()).bulkUpsert(any());
+    }
+
+    private CellEntity getCell(String name) {
+        return CellEntity.builder()
+                .sheetName("testSheet")
+                .name(name)
+                .value("1")
+                .type(CellEntity.CellType.DIGIT)
+                .build();
+    }
+}
@@ -0,0 +1,136 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.repository.CellRepository;
+import org.junit.jupiter.api.Test;
+import org.mariuszgromada.math.mxparser.License;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class CsvImportServiceTest {
+    private static final String SHEET_NAME = "testSheet";
+    private final CellRepository cellRepository = mock(CellRepository.class);
+    private final CellWriteBatcher cellWriteBatcher = mock(CellWriteBatcher.class);
+    private final SheetDependencies sheetDependencies = mock(SheetDependencies.class);
+    private final List<CellEntity> stored = new ArrayList<>();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CsvImportService csvImportService;
+
+    public CsvImportServiceTest() {
+        License.iConfirmNonCommercialUse("testUsage");
+        csvImportService = new CsvImportService(cellRepository, cellWriteBatcher, mock(SheetVersions.class),
+                new ReadCoalescer(meterRegistry), sheetDependencies,
+                new AdmissionController(meterRegistry, 16, 8, 16, 16, Duration.ofMillis(100), Duration.ofMillis(100), Duration.ofSeconds(1)),
+                meterRegistry, 2, 1, 16);
+        doAnswer(invocation -> stored.addAll(invocation.getArgument(0))).when(cellWriteBatcher).saveAll(anyList());
+        when(cellRepository.streamSheet(eq(SHEET_NAME), anyInt())).thenAnswer(invocation -> stored.stream());
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn(anyString(), anyCollection())).thenReturn(List.of());
+    }
+
+    @Test
+    public void cellsShouldBeStoredInBatchesAndValidatedAfterwards() throws IOException {
+        // var1 is used before it is defined
+        var response = csvImportService.importCsv(SHEET_NAME,
+                new StringReader("name,value\nvar2,=var1+1\nvar1,1\nvar3,=var4\nvar4,=var3\nbroken\n"),
+                CsvImportService.Layout.CELLS);
+
+        ArgumentCaptor<List<CellEntity>> argumentCaptor = ArgumentCaptor.forClass(List.class);
+        verify(cellWriteBatcher, times(2)).saveAll(argumentCaptor.capture());
+        assertThat(argumentCaptor.getAllValues()).allMatch(batch -> batch.size() == 2);
+        assertThat(stored).extracting(CellEntity::getType).containsExactly(CellEntity.CellType.FORMULA,
+                CellEntity.CellType.DIGIT, CellEntity.CellType.FORMULA, CellEntity.CellType.FORMULA);
+        assertThat(response.getImported()).isEqualTo(4);
+        // the bad record and both cells of the cycle, only the first error is listed
+        assertThat(response.getFailed()).isEqualTo(3);
+        assertThat(response.getErrors()).containsExactly("Line 6: expected name,value");
+        verify(sheetDependencies, times(4)).update(any(), isNull());
+        // one permit per stored batch, not per cell
+        assertThat(meterRegistry.get("sheet.admission.write.cost").summary().max()).isEqualTo(1);
+    }
+
+    @Test
+    public void existingCellsShouldKeepTheirIds() throws IOException {
+        UUID id = UUID.randomUUID();
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn(eq("testsheet"), anyCollection())).thenReturn(List.of(
+                CellEntity.builder().id(id).name("Var1").sheetName(SHEET_NAME).value("1").build()));
+
+        var response = csvImportService.importCsv(SHEET_NAME, new StringReader("var1,1\nVAR1,2"), CsvImportService.Layout.CELLS);
+
+        assertThat(response.getImported()).isEqualTo(1);
+        assertThat(stored).hasSize(1);
+        assertThat(stored.get(0).getId()).isEqualTo(id);
+        assertThat(stored.get(0).getValue()).isEqualTo("2");
+        verify(sheetDependencies).update(stored.get(0), "1");
+    }
+
+    @Test
+    public void formulasOfOtherSheetsUsingImportedCellsShouldBeValidated() throws IOException {
+        CellEntity dependent = CellEntity.builder().name("total").sheetName("rates").value("=testSheet!var1*2")
+                .type(CellEntity.CellType.FORMULA).build();
+        when(sheetDependencies.dependents(eq(SHEET_NAME), anyCollection())).thenReturn(List.of(dependent));
+
+        var response = csvImportService.importCsv(SHEET_NAME, new StringReader("var1,abc\nvar2,1\nvar3,2"),
+                CsvImportService.Layout.CELLS);
+
+        assertThat(response.getImported()).isEqualTo(3);
+        // evaluated with the first batch only
+        assertThat(response.getFailed()).isEqualTo(1);
+        assertThat(response.getErrors()).containsExactly("Cell rates!total: Failed to calculate expression =testSheet!var1*2");
+        verify(sheetDependencies, times(2)).dependents(eq(SHEET_NAME), anyCollection());
+    }
+
+    @Test
+    public void cellUsedByManyBatchesShouldBeLoadedOnce() throws IOException {
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn(eq("testsheet"), anyCollection())).thenAnswer(invocation -> {
+            Collection<String> nameKeys = invocation.getArgument(1);
+            return stored.stream().filter(cell -> nameKeys.contains(CellEntity.normalize(cell.getName()))).toList();
+        });
+
+        // shared is validated with the last batch, but used by the formulas of all batches before it
+        var response = csvImportService.importCsv(SHEET_NAME,
+                new StringReader("var1,=shared+1\nvar2,=shared+2\nvar3,=shared+3\nvar4,=shared+4\nshared,=base*2\nbase,3"),
+                CsvImportService.Layout.CELLS);
+
+        assertThat(response.getImported()).isEqualTo(6);
+        assertThat(response.getFailed()).isZero();
+        verify(cellRepository, times(1)).findAllBySheetKeyAndNameKeyIn("testsheet", Set.of("shared"));
+        verify(cellRepository, times(1)).findAllBySheetKeyAndNameKeyIn("testsheet", Set.of("base"));
+        verify(cellRepository, never()).findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString());
+    }
+
+    @Test
+    public void emptyGridRowShouldKeepTheNumbersOfTheRowsAfterIt() throws IOException {
+        var response = csvImportService.importCsv(SHEET_NAME, new StringReader("1\n\n=A1*2\n\"a\nb\",2\n\r\n3"),
+                CsvImportService.Layout.GRID);
+
+        assertThat(response.getImported()).isEqualTo(5);
+        // the quoted line break is part of row 4, the blank lines are rows 2 and 5
+        assertThat(stored).extracting(CellEntity::getName).containsExactly("A1", "A3", "A4", "B4", "A6");
+    }
+
+    @Test
+    public void gridCellsShouldBeNamedByColumnAndRow() throws IOException {
+        var response = csvImportService.importCsv(SHEET_NAME, new StringReader("1,,=A1+1\n2"), CsvImportService.Layout.GRID);
+
+        assertThat(response.getImported()).isEqualTo(3);
+        assertThat(response.getFailed()).isZero();
+        assertThat(stored).extracting(CellEntity::getName).containsExactly("A1", "C1", "A2");
+        assertThat(CsvImportService.columnName(25)).isEqualTo("Z");
+        assertThat(CsvImportService.columnName(26)).isEqualTo("AA");
+        assertThat(CsvImportService.columnName(701)).isEqualTo("ZZ");
+        assertThat(CsvImportService.columnName(702)).isEqualTo("AAA");
+    }
+}
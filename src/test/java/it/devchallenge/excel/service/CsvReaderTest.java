@@ -0,0 +1,65 @@
+package it.devchallenge.excel.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CsvReaderTest {
+
+    @Test
+    public void quotedFieldsShouldKeepSeparatorsLineBreaksAndQuotes() throws IOException {
+        var records = readAll("var1,1\r\nvar2,\"=var1,\"\"x\"\"\n2\"\n\nvar3,\r\"\"\n");
+
+        assertThat(records).containsExactly(
+                List.of("var1", "1"),
+                List.of("var2", "=var1,\"x\"\n2"),
+                List.of("var3", ""),
+                List.of(""));
+    }
+
+    @Test
+    public void recordShouldRememberItsLine() throws IOException {
+        var reader = new CsvReader(new StringReader("a,\"1\n2\"\n\nb,3"), 100, true);
+
+        reader.next();
+        assertThat(reader.getLine()).isEqualTo(1);
+        assertThat(reader.next()).containsExactly("b", "3");
+        assertThat(reader.getLine()).isEqualTo(4);
+        assertThat(reader.next()).isNull();
+    }
+
+    @Test
+    public void blankLinesShouldBeReadAsEmptyRecordsUnlessSkipped() throws IOException {
+        var reader = new CsvReader(new StringReader("1\n\r\n\"2\n\"\n"), 100, false);
+
+        assertThat(reader.next()).containsExactly("1");
+        assertThat(reader.next()).isEmpty();
+        assertThat(reader.getLine()).isEqualTo(2);
+        assertThat(reader.next()).containsExactly("2\n");
+        assertThat(reader.getLine()).isEqualTo(3);
+        assertThat(reader.next()).isNull();
+    }
+
+    @Test
+    public void invalidCsvShouldBeRejected() {
+        assertThrows(IllegalArgumentException.class, () -> readAll("a,\"1\n"));
+        assertThrows(IllegalArgumentException.class, () -> readAll("a,\"1\"2\n"));
+        assertThrows(IllegalArgumentException.class, () -> readAll("a,1\"2\n"));
+        assertThrows(IllegalArgumentException.class, () -> readAll("a," + "1".repeat(101)));
+    }
+
+    private List<List<String>> readAll(String csv) throws IOException {
+        var reader = new CsvReader(new StringReader(csv), 100, true);
+        List<List<String>> records = new ArrayList<>();
+        for (var record = reader.next(); record != null; record = reader.next()) {
+            records.add(record);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,78 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.devchallenge.excel.exceptions.NotFoundException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ReadCoalescerTest {
+    private static final ReadCoalescer.ReadKey KEY = new ReadCoalescer.ReadKey("testsheet", null, SheetVersions.Stamp.NONE);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ReadCoalescer readCoalescer = new ReadCoalescer(meterRegistry);
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @Test
+    public void concurrentReadsShouldShareOneComputation() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+
+        Future<String> first = executor.submit(() -> readCoalescer.execute(KEY, () -> {
+            loads.incrementAndGet();
+            started.countDown();
+            release.await();
+            return "result";
+        }));
+        started.await();
+        Future<String> second = executor.submit(() -> readCoalescer.execute(KEY, () -> {
+            loads.incrementAndGet();
+            return "other";
+        }));
+        while (meterRegistry.counter("sheet.read.coalesced").count() == 0) {
+            Thread.onSpinWait();
+        }
+        release.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("result");
+        assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("result");
+        assertThat(loads.get()).isEqualTo(1);
+        assertThat(meterRegistry.get("sheet.read.coalescing.ratio").gauge().value()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void completedReadShouldNotBeShared() throws Exception {
+        assertThat(readCoalescer.execute(KEY, () -> "first")).isEqualTo("first");
+        assertThat(readCoalescer.execute(KEY, () -> "second")).isEqualTo("second");
+    }
+
+    @Test
+    public void invalidatedReadShouldNotBeJoined() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> first = executor.submit(() -> readCoalescer.execute(KEY, () -> {
+            started.countDown();
+            release.await();
+            return "old";
+        }));
+        started.await();
+        readCoalescer.invalidate(KEY.sheetKey());
+
+        assertThat(readCoalescer.execute(KEY, () -> "new")).isEqualTo("new");
+        release.countDown();
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("old");
+    }
+
+    @Test
+    public void failedReadShouldThrowOriginalException() {
+        Exception exception = assertThrows(NotFoundException.class, () -> readCoalescer.execute(KEY, () -> {
+            throw new NotFoundException("Sheet testSheet not found");
+        }));
+        assertThat(exception.getMessage()).isEqualTo("Sheet testSheet not found");
+    }
+}
@@ -8,11 +8,12 @@ import org.junit.jupiter.api.Test;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
 
 public class ResultCalculatorTest {
     private final CellRepository cellRepository = mock(CellRepository.class);
@@ -68,6 +69,17 @@ public class ResultCalculatorTest {
         assertThat(result).isEqualTo("-8.5");
     }
 
+    @Test
+    public void calculateShouldKeepPrecedenceOfReferencedFormulas() throws CalculationException {
+        CellEntity sum = getCell("sum", "=1+2", CellEntity.CellType.FORMULA);
+        CellEntity cell = getCell("=sum*3", CellEntity.CellType.FORMULA);
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(sum.getSheetName(), sum.getName()))
+                .thenReturn(Optional.of(sum));
+
+        var result = new ResultCalculator(cell, cellRepository).calculateFormula();
+        assertThat(result).isEqualTo("9");
+    }
+
     @Test
     public void calculateShouldReturnValueFromAnotherCell() throws CalculationException {
         CellEntity anotherCell = getCell("cell1", "2", CellEntity.CellType.DIGIT);
@@ -111,6 +123,106 @@ public class ResultCalculatorTest {
         assertThat(exception.getMessage()).isEqualTo("Failed to fill formula");
     }
 
+    @Test
+    public void calculateShouldReturnErrorForIndirectRecursion() {
+        CellEntity cell1 = getCell("cell1", "=cell2", CellEntity.CellType.FORMULA);
+        CellEntity cell2 = getCell("cell2", "=cell1", CellEntity.CellType.FORMULA);
+        CellEntity cell = getCell("=" + cell1.getName(), CellEntity.CellType.FORMULA);
+
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(cell1.getSheetName(), cell1.getName()))
+                .thenReturn(Optional.of(cell1));
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(cell2.getSheetName(), cell2.getName()))
+                .thenReturn(Optional.of(cell2));
+
+        var calculator = new ResultCalculator(cell, cellRepository);
+        Exception exception = assertThrows(CalculationException.class, calculator::calculateFormula);
+        assertThat(exception.getMessage()).isEqualTo("Recursive formula");
+    }
+
+    @Test
+    public void calculateShouldUseCellOfAnotherSheet() throws CalculationException {
+        CellEntity rate = CellEntity.builder()
+                .sheetName("rates")
+                .name("vat")
+                .value("=base/5")
+                .type(CellEntity.CellType.FORMULA)
+                .build();
+        CellEntity base = CellEntity.builder()
+                .sheetName("rates")
+                .name("base")
+                .value("1")
+                .type(CellEntity.CellType.DIGIT)
+                .build();
+        CellEntity localBase = getCell("base", "100", CellEntity.CellType.DIGIT);
+        CellEntity cell = getCell("=base*Rates!VAT", CellEntity.CellType.FORMULA);
+
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase("Rates", "VAT")).thenReturn(Optional.of(rate));
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase("rates", "base")).thenReturn(Optional.of(base));
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase("testSheet", "base")).thenReturn(Optional.of(localBase));
+
+        assertThat(new ResultCalculator(cell, cellRepository).calculateFormula()).isEqualTo("20");
+    }
+
+    @Test
+    public void calculateShouldReturnErrorForRecursionThroughAnotherSheet() {
+        CellEntity other = CellEntity.builder()
+                .sheetName("otherSheet")
+                .name("cell1")
+                .value("=testSheet!testCell")
+                .type(CellEntity.CellType.FORMULA)
+                .build();
+        CellEntity cell = getCell("=otherSheet!cell1", CellEntity.CellType.FORMULA);
+
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase("otherSheet", "cell1")).thenReturn(Optional.of(other));
+
+        var calculator = new ResultCalculator(cell, cellRepository);
+        Exception exception = assertThrows(CalculationException.class, calculator::calculateFormula);
+        assertThat(exception.getMessage()).isEqualTo("Recursive formula");
+    }
+
+    /**
+     * Shared context tests
+     */
+    @Test
+    public void sharedContextShouldLoadAndFillEachCellOnce() throws CalculationException {
+        CellEntity anotherCell = getCell("cell1", "2", CellEntity.CellType.DIGIT);
+        CellEntity formulaCell = getCell("cell2", "=cell1*3", CellEntity.CellType.FORMULA);
+        CellEntity cell3 = getCell("cell3", "=cell2+1", CellEntity.CellType.FORMULA);
+        CellEntity cell4 = getCell("cell4", "=cell2-1", CellEntity.CellType.FORMULA);
+
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(anotherCell.getSheetName(), anotherCell.getName()))
+                .thenReturn(Optional.of(anotherCell));
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(formulaCell.getSheetName(), formulaCell.getName()))
+                .thenReturn(Optional.of(formulaCell));
+
+        var context = new EvaluationContext("testSheet", cellRepository);
+        assertThat(new ResultCalculator(cell3, context).calculateFormula()).isEqualTo("7");
+        assertThat(new ResultCalculator(cell4, context).calculateFormula()).isEqualTo("5");
+
+        verify(cellRepository, times(1)).findBySheetNameIgnoreCaseAndNameIgnoreCase(anotherCell.getSheetName(), anotherCell.getName());
+        verify(cellRepository, times(1)).findBySheetNameIgnoreCaseAndNameIgnoreCase(formulaCell.getSheetName(), formulaCell.getName());
+    }
+
+    @Test
+    public void prefetchShouldLoadReferencedCellsByLevels() throws CalculationException {
+        CellEntity anotherCell = getCell("cell1", "2", CellEntity.CellType.DIGIT);
+        CellEntity formulaCell = getCell("cell2", "=CELL1*3", CellEntity.CellType.FORMULA);
+        CellEntity cell = getCell("cell3", "=cell2+1", CellEntity.CellType.FORMULA);
+
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn("testsheet", Set.of("cell3")))
+                .thenReturn(List.of(cell));
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn("testsheet", Set.of("cell2")))
+                .thenReturn(List.of(formulaCell));
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn("testsheet", Set.of("cell1")))
+                .thenReturn(List.of(anotherCell));
+
+        var context = new EvaluationContext("testSheet", cellRepository);
+        context.prefetch(List.of("Cell3"));
+
+        assertThat(new ResultCalculator(context.getCell("cell3").orElseThrow(), context).calculateFormula()).isEqualTo("7");
+        verify(cellRepository, never()).findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString());
+    }
+
     private CellEntity getCell(String value, CellEntity.CellType type) {
         return getCell("testCell", value, type);
     }
@@ -0,0 +1,135 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.devchallenge.excel.dto.ScenarioRequest;
+import it.devchallenge.excel.exceptions.NotFoundException;
+import it.devchallenge.excel.exceptions.OverloadedException;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.repository.CellRepository;
+import org.junit.jupiter.api.Test;
+import org.mariuszgromada.math.mxparser.License;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class ScenarioServiceTest {
+    private static final String SHEET_NAME = "testSheet";
+    private final CellRepository cellRepository = mock(CellRepository.class);
+    private final AdmissionController admissionController = new AdmissionController(new SimpleMeterRegistry(),
+            16, 8, 16, 1, Duration.ofMillis(100), Duration.ofMillis(100), Duration.ofSeconds(1));
+    private final ScenarioService scenarioService;
+
+    public ScenarioServiceTest() {
+        License.iConfirmNonCommercialUse("testUsage");
+        scenarioService = new ScenarioService(cellRepository, admissionController);
+    }
+
+    @Test
+    public void evaluateShouldReturnOutputsForEveryScenario() throws NotFoundException {
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn(anyString(), any())).thenReturn(List.of(
+                getCell("price", "10", CellEntity.CellType.DIGIT),
+                getCell("count", "2", CellEntity.CellType.DIGIT),
+                getCell("tax", "=price*0.5", CellEntity.CellType.FORMULA),
+                getCell("total", "=price*count+tax", CellEntity.CellType.FORMULA),
+                getCell("label", "str", CellEntity.CellType.STRING)));
+
+        var response = scenarioService.evaluate(SHEET_NAME, new ScenarioRequest(
+                List.of("price", "count"),
+                List.of("total", "tax", "count", "label"),
+                List.of(List.of(10.0, 2.0), List.of(4.0, 3.0), List.of(1.5, 0.0))));
+
+        assertThat(response.getOutputs()).containsExactly("total", "tax", "count", "label");
+        assertThat(response.getResults()).containsExactly(
+                List.of("25", "5", "2", "str"),
+                List.of("14", "2", "3", "str"),
+                List.of("0.75", "0.75", "0", "str"));
+        verify(cellRepository, never()).bulkUpsert(any());
+        verify(cellRepository, never()).save(any());
+    }
+
+    @Test
+    public void inlinedFormulasShouldKeepTheirPrecedence() throws NotFoundException {
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn(anyString(), any())).thenReturn(List.of(
+                getCell("a", "=x+2", CellEntity.CellType.FORMULA),
+                getCell("b", "=a*3", CellEntity.CellType.FORMULA),
+                getCell("c", "=10-a-b/4", CellEntity.CellType.FORMULA),
+                getCell("x", "1", CellEntity.CellType.DIGIT)));
+
+        var response = scenarioService.evaluate(SHEET_NAME, new ScenarioRequest(
+                List.of("x"), List.of("b", "c"), List.of(List.of(1.0), List.of(2.0))));
+
+        // (x+2)*3 and 10-(x+2)-((x+2)*3)/4
+        assertThat(response.getResults()).containsExactly(List.of("9", "4.75"), List.of("12", "3"));
+    }
+
+    @Test
+    public void evaluateShouldWaitForScanPermit() {
+        var permit = admissionController.admitScan();
+
+        assertThrows(OverloadedException.class, () -> scenarioService.evaluate(SHEET_NAME,
+                new ScenarioRequest(List.of(), List.of(), List.of())));
+        permit.close();
+    }
+
+    @Test
+    public void evaluateShouldSplitScenariosIntoChunks() throws NotFoundException {
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn(anyString(), any())).thenReturn(List.of(
+                getCell("input", "1", CellEntity.CellType.DIGIT),
+                getCell("output", "=input*2", CellEntity.CellType.FORMULA)));
+        List<List<Double>> scenarios = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            scenarios.add(List.of((double) i));
+        }
+
+        var response = scenarioService.evaluate(SHEET_NAME, new ScenarioRequest(List.of("input"), List.of("output"), scenarios));
+
+        assertThat(response.getResults()).hasSize(5000);
+        for (int i = 0; i < 5000; i++) {
+            assertThat(response.getResults().get(i)).containsExactly(String.valueOf(i * 2));
+        }
+    }
+
+    @Test
+    public void evaluateShouldReturnErrorForBrokenOutput() throws NotFoundException {
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn(anyString(), any())).thenReturn(List.of(
+                getCell("input", "1", CellEntity.CellType.DIGIT),
+                getCell("output", "=input/missing", CellEntity.CellType.FORMULA)));
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString())).thenReturn(Optional.empty());
+
+        var response = scenarioService.evaluate(SHEET_NAME, new ScenarioRequest(List.of("input"), List.of("output"),
+                List.of(List.of(1.0))));
+
+        assertThat(response.getResults()).containsExactly(List.of("ERROR"));
+    }
+
+    @Test
+    public void evaluateShouldFailForNotExistingOutput() {
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn(anyString(), any())).thenReturn(List.of());
+
+        assertThrows(NotFoundException.class, () -> scenarioService.evaluate(SHEET_NAME,
+                new ScenarioRequest(List.of("input"), List.of("output"), List.of(List.of(1.0)))));
+    }
+
+    @Test
+    public void evaluateShouldFailForIncompleteScenario() {
+        assertThrows(IllegalArgumentException.class, () -> scenarioService.evaluate(SHEET_NAME,
+                new ScenarioRequest(List.of("input1", "input2"), List.of("output"), List.of(List.of(1.0)))));
+    }
+
+    private CellEntity getCell(String name, String value, CellEntity.CellType type) {
+        return CellEntity.builder()
+                .sheetName(SHEET_NAME)
+                .name(name)
+                .value(value)
+                .type(type)
+                .build();
+    }
+}
@@ -1,20 +1,36 @@
 package it.devchallenge.excel.service;
 
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.devchallenge.excel.dto.CellResponse;
+import it.devchallenge.excel.dto.ExplainResponse;
 import it.devchallenge.excel.exceptions.CalculationException;
 import it.devchallenge.excel.exceptions.NotFoundException;
+import it.devchallenge.excel.exceptions.OverloadedException;
 import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.model.SheetVersionEntity;
 import it.devchallenge.excel.repository.CellRepository;
+import it.devchallenge.excel.repository.SheetVersionRepository;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 import org.mariuszgromada.math.mxparser.License;
 import org.mockito.ArgumentCaptor;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.*;
 
 public class SheetServiceTest {
@@ -24,11 +40,27 @@ public class SheetServiceTest {
     private static final String DIGIT_VALUE = "12";
     private static final String CALCULATION_VALUE = "=1+2";
     private final CellRepository cellRepository = mock(CellRepository.class);
+    private final SheetDependencies sheetDependencies = mock(SheetDependencies.class);
+    private final SheetVersionRepository sheetVersionRepository = mock(SheetVersionRepository.class);
+    private final CellWriteBatcher cellWriteBatcher;
     private final SheetService sheetService;
 
     public SheetServiceTest() {
         License.iConfirmNonCommercialUse("testUsage");
-        sheetService = new SheetService(cellRepository);
+        var meterRegistry = new SimpleMeterRegistry();
+        var sheetVersions = new SheetVersions(sheetVersionRepository, meterRegistry, Duration.ZERO, 16);
+        var sheetSnapshots = new SheetSnapshots(cellRepository, sheetVersions, meterRegistry, 100, 4);
+        cellWriteBatcher = new CellWriteBatcher(cellRepository, sheetVersions, sheetSnapshots, meterRegistry, Duration.ZERO, 1,
+                Duration.ofSeconds(5));
+        sheetService = new SheetService(cellRepository, cellWriteBatcher,
+                sheetVersions, new ReadCoalescer(meterRegistry), sheetDependencies,
+                new AdmissionController(meterRegistry, 16, 8, 16, 16, Duration.ofMillis(100), Duration.ofMillis(100), Duration.ofSeconds(1)),
+                sheetSnapshots);
+    }
+
+    @AfterEach
+    public void clean() throws InterruptedException {
+        cellWriteBatcher.close();
     }
 
     /**
@@ -37,11 +69,12 @@ public class SheetServiceTest {
     @Test
     public void addCellWithStringType() throws CalculationException {
         when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString())).thenReturn(Optional.empty());
-        ArgumentCaptor<CellEntity> argumentCaptor = ArgumentCaptor.forClass(CellEntity.class);
+        ArgumentCaptor<List<CellEntity>> argumentCaptor = ArgumentCaptor.forClass(List.class);
         var result = sheetService.addCell(SHEET_NAME, CELL_NAME, STRING_VALUE);
-        verify(cellRepository).save(argumentCaptor.capture());
+        verify(cellRepository).bulkUpsert(argumentCaptor.capture());
 
-        CellEntity cell = argumentCaptor.getValue();
+        assertThat(argumentCaptor.getValue()).hasSize(1);
+        CellEntity cell = argumentCaptor.getValue().get(0);
 
         assertThat(cell.getSheetName()).isEqualTo(SHEET_NAME);
         assertThat(cell.getName()).isEqualTo(CELL_NAME);
@@ -55,11 +88,12 @@ public class SheetServiceTest {
     @Test
     public void addCellWithDigitType() throws CalculationException {
         when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString())).thenReturn(Optional.empty());
-        ArgumentCaptor<CellEntity> argumentCaptor = ArgumentCaptor.forClass(CellEntity.class);
+        ArgumentCaptor<List<CellEntity>> argumentCaptor = ArgumentCaptor.forClass(List.class);
         var result = sheetService.addCell(SHEET_NAME, CELL_NAME, DIGIT_VALUE);
-        verify(cellRepository).save(argumentCaptor.capture());
+        verify(cellRepository).bulkUpsert(argumentCaptor.capture());
 
-        CellEntity cell = argumentCaptor.getValue();
+        assertThat(argumentCaptor.getValue()).hasSize(1);
+        CellEntity cell = argumentCaptor.getValue().get(0);
 
         assertThat(cell.getSheetName()).isEqualTo(SHEET_NAME);
         assertThat(cell.getName()).isEqualTo(CELL_NAME);
@@ -73,11 +107,12 @@ public class SheetServiceTest {
     @Test
     public void addCellWithCalculationType() throws CalculationException {
         when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString())).thenReturn(Optional.empty());
-        ArgumentCaptor<CellEntity> argumentCaptor = ArgumentCaptor.forClass(CellEntity.class);
+        ArgumentCaptor<List<CellEntity>> argumentCaptor = ArgumentCaptor.forClass(List.class);
         var result = sheetService.addCell(SHEET_NAME, CELL_NAME, CALCULATION_VALUE);
-        verify(cellRepository).save(argumentCaptor.capture());
+        verify(cellRepository).bulkUpsert(argumentCaptor.capture());
 
-        CellEntity cell = argumentCaptor.getValue();
+        assertThat(argumentCaptor.getValue()).hasSize(1);
+        CellEntity cell = argumentCaptor.getValue().get(0);
 
         assertThat(cell.getSheetName()).isEqualTo(SHEET_NAME);
         assertThat(cell.getName()).isEqualTo(CELL_NAME);
@@ -95,7 +130,7 @@ public class SheetServiceTest {
         when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString())).thenReturn(Optional.empty());
         Exception exception = assertThrows(CalculationException.class, () -> sheetService.addCell(SHEET_NAME, CELL_NAME, cellValue));
         assertThat(exception.getMessage()).isEqualTo("Failed to fill formula");
-        verify(cellRepository, times(0)).save(any());
+        verify(cellRepository, times(0)).bulkUpsert(any());
     }
 
     @Test
@@ -106,7 +141,7 @@ public class SheetServiceTest {
         Exception exception = assertThrows(CalculationException.class, () -> sheetService.addCell(SHEET_NAME, CELL_NAME, cellValue));
         assertThat(exception.getMessage()).isEqualTo("Recursive formula");
 
-        verify(cellRepository, times(0)).save(any());
+        verify(cellRepository, times(0)).bulkUpsert(any());
     }
 
     @Test
@@ -123,6 +158,33 @@ public class SheetServiceTest {
         assertThat(result.getResult()).isEqualTo(STRING_VALUE);
     }
 
+    @Test
+    public void addCellShouldRecalculateCellsOfOtherSheets() {
+        CellEntity dependent = CellEntity.builder()
+                .sheetName("otherSheet")
+                .name("total")
+                .value("=%s!%s*2".formatted(SHEET_NAME, CELL_NAME))
+                .type(CellEntity.CellType.FORMULA)
+                .build();
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString())).thenReturn(Optional.empty());
+        when(sheetDependencies.dependents(SHEET_NAME, CELL_NAME)).thenReturn(List.of(dependent));
+
+        assertThrows(CalculationException.class, () -> sheetService.addCell(SHEET_NAME, CELL_NAME, STRING_VALUE));
+        verify(cellRepository, times(0)).bulkUpsert(any());
+    }
+
+    @Test
+    public void addCellShouldUpdateDependenciesAfterSave() throws CalculationException {
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString())).thenReturn(Optional.empty());
+        var result = sheetService.addCell(SHEET_NAME, CELL_NAME, DIGIT_VALUE);
+
+        var inOrder = inOrder(cellRepository, sheetDependencies);
+        inOrder.verify(cellRepository).bulkUpsert(any());
+        inOrder.verify(sheetDependencies).update(any(), isNull());
+        inOrder.verify(sheetDependencies).dependentSheets(SHEET_NAME);
+        assertThat(result.getResult()).isEqualTo(DIGIT_VALUE);
+    }
+
     @Test
     public void getResultForStringCell() throws CalculationException, NotFoundException {
         CellEntity cell = getCell("stringValue", CellEntity.CellType.STRING);
@@ -139,13 +201,132 @@ public class SheetServiceTest {
         assertThat(result).isEqualTo(cell.getValue());
     }
 
+    @Test
+    public void sheetReadShouldLoadCellsOfOtherSheetsWithOneQuery() throws NotFoundException {
+        CellEntity tax = getCell("tax", "=rates!vat*2", CellEntity.CellType.FORMULA);
+        CellEntity total = getCell("total", "=rates!vat+Rates!FEE", CellEntity.CellType.FORMULA);
+        when(cellRepository.findAllBySheetKey("testsheet")).thenReturn(List.of(tax, total));
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn("rates", Set.of("vat", "fee"))).thenReturn(List.of(
+                getCell("rates", "vat", "0.5", CellEntity.CellType.DIGIT),
+                getCell("rates", "fee", "3", CellEntity.CellType.DIGIT)));
+
+        var sheet = sheetService.getSheet(SHEET_NAME);
+
+        assertThat(sheet.get("tax").getResult()).isEqualTo("1");
+        assertThat(sheet.get("total").getResult()).isEqualTo("3.5");
+        verify(cellRepository, times(1)).findAllBySheetKeyAndNameKeyIn(anyString(), anyCollection());
+        verify(cellRepository, never()).findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString());
+    }
+
+    @Test
+    public void dependentsShouldBeEvaluatedInOnePrefetchedContext() throws CalculationException {
+        when(cellRepository.findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString())).thenReturn(Optional.empty());
+        when(sheetDependencies.dependents(SHEET_NAME, "vat")).thenReturn(List.of(
+                getCell("orders", "tax", "=testSheet!vat*price", CellEntity.CellType.FORMULA),
+                getCell("orders", "total", "=price+tax", CellEntity.CellType.FORMULA)));
+        when(cellRepository.findAllBySheetKeyAndNameKeyIn("orders", Set.of("price"))).thenReturn(List.of(
+                getCell("orders", "price", "10", CellEntity.CellType.DIGIT)));
+
+        var result = sheetService.addCell(SHEET_NAME, "vat", "=0.1*2");
+
+        assertThat(result.getResult()).isEqualTo("0.2");
+        verify(cellRepository, times(1)).findAllBySheetKeyAndNameKeyIn(anyString(), anyCollection());
+        // only the written cell itself is looked up one by one
+        verify(cellRepository, times(1)).findBySheetNameIgnoreCaseAndNameIgnoreCase(anyString(), anyString());
+    }
+
+    @Test
+    public void admittedStreamShouldNotWaitForPermitsBetweenBatches() throws IOException {
+        List<CellEntity> cells = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            cells.add(getCell("var" + i, String.valueOf(i), CellEntity.CellType.DIGIT));
+        }
+        when(cellRepository.streamSheet(eq(SHEET_NAME), anyInt())).thenAnswer(invocation -> cells.stream());
+        List<AdmissionController.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            permits.add(sheetService.admitStream());
+        }
+        List<String> streamed = new ArrayList<>();
+
+        // every scan permit is taken, the stream still runs to the end
+        sheetService.streamSheet(SHEET_NAME, new SheetService.CellConsumer() {
+            @Override
+            public void accept(String cellName, CellResponse cell) {
+                streamed.add(cellName);
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+
+        assertThat(streamed).hasSize(1200);
+        assertThrows(OverloadedException.class, sheetService::admitStream);
+        permits.forEach(AdmissionController.Permit::close);
+    }
+
+    @Test
+    public void explainCellShouldReturnEvaluationTree() throws NotFoundException {
+        CellEntity cell1 = getCell("cell1", "2", CellEntity.CellType.DIGIT);
+        CellEntity cell2 = getCell("cell2", "=cell1*3", CellEntity.CellType.FORMULA);
+        CellEntity cell = getCell("=cell2+cell1+cell2", CellEntity.CellType.FORMULA);
+        when(cellRepository.findAllBySheetKey("testsheet")).thenReturn(List.of(cell, cell1, cell2));
+        // the whole-sheet read loads the snapshot
+        sheetService.getSheet(SHEET_NAME);
+
+        var explain = sheetService.explainCell(SHEET_NAME, CELL_NAME);
+
+        assertThat(explain.getResult()).isEqualTo("14");
+        // the version read, the snapshot is up to date
+        assertThat(explain.getRepositoryCalls()).isEqualTo(1);
+        var root = explain.getTree();
+        assertThat(root.getCell()).isEqualTo(SHEET_NAME + "!" + CELL_NAME);
+        assertThat(root.getSource()).isEqualTo("snapshot");
+        assertThat(root.getEvaluateNanos()).isPositive();
+        assertThat(root.getChildren()).extracting(ExplainResponse.Node::getCell)
+                .containsExactly(SHEET_NAME + "!cell2", SHEET_NAME + "!cell1");
+
+        var node2 = root.getChildren().get(0);
+        assertThat(node2.getVisits()).isEqualTo(2);
+        assertThat(node2.getParseNanos()).isPositive();
+        assertThat(node2.getChildren()).extracting(ExplainResponse.Node::getCell).containsExactly(SHEET_NAME + "!cell1");
+        // cell1 is expanded under cell2, its second occurrence is a leaf
+        assertThat(node2.getChildren().get(0).getVisits()).isEqualTo(2);
+        assertThat(root.getChildren().get(1).getChildren()).isNull();
+    }
+
+    @Test
+    public void explainCellShouldCountVersionReadAndSnapshotRefresh() throws NotFoundException {
+        CellEntity cell = getCell("=1+2", CellEntity.CellType.FORMULA);
+        when(cellRepository.findAllBySheetKey("testsheet")).thenReturn(List.of(cell));
+        sheetService.getSheet(SHEET_NAME);
+        // another instance wrote to the sheet
+        when(sheetVersionRepository.findById("testsheet"))
+                .thenReturn(Optional.of(SheetVersionEntity.builder().id("testsheet").reserved(1).committed(1).build()));
+
+        var explain = sheetService.explainCell(SHEET_NAME, CELL_NAME);
+
+        assertThat(explain.getResult()).isEqualTo("3");
+        assertThat(explain.getRepositoryCalls()).isEqualTo(2);
+        verify(cellRepository).findAllBySheetKeyAndVersionGreaterThan("testsheet", 0);
+    }
+
+    @Test
+    public void explainCellShouldFailForNotExistingCell() {
+        assertThrows(NotFoundException.class, () -> sheetService.explainCell(SHEET_NAME, CELL_NAME));
+    }
+
     private CellEntity getCell(String value, CellEntity.CellType type) {
         return getCell("testCell", value, type);
     }
 
     private CellEntity getCell(String name, String value, CellEntity.CellType type) {
+        return getCell(SHEET_NAME, name, value, type);
+    }
+
+    private CellEntity getCell(String sheetName, String name, String value, CellEntity.CellType type) {
         return CellEntity.builder()
-                .sheetName("testSheet")
+                .sheetName(sheetName)
                 .name(name)
                 .value(value)
                 .type(type)
@@ -0,0 +1,164 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.devchallenge.excel.model.CellEntity;
+import it.devchallenge.excel.repository.CellRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class SheetSnapshotsTest {
+    private static final String SHEET_KEY = "testsheet";
+    private final CellRepository cellRepository = mock(CellRepository.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SheetVersions sheetVersions = mock(SheetVersions.class);
+    private final SheetSnapshots sheetSnapshots = new SheetSnapshots(cellRepository, sheetVersions, meterRegistry, 100, 2);
+
+    @BeforeEach
+    public void setUp() {
+        when(sheetVersions.current(anyString())).thenReturn(SheetVersions.Stamp.NONE);
+        when(sheetVersions.current(anyString(), any())).thenReturn(SheetVersions.Stamp.NONE);
+    }
+
+    @Test
+    public void publishedVersionShouldNotChangeOlderSnapshots() {
+        when(cellRepository.findAllBySheetKey(SHEET_KEY)).thenReturn(List.of(getCell("cell1", "1"), getCell("cell2", "2")));
+        SheetSnapshot first = sheetSnapshots.get("testSheet");
+
+        CellEntity changed = getCell("Cell1", "3");
+        sheetSnapshots.publish(List.of(changed, getCell("cell3", "4")));
+        changed.setValue("5");
+        SheetSnapshot second = sheetSnapshots.get("TESTSHEET");
+
+        assertThat(first.get("cell1").orElseThrow().getValue()).isEqualTo("1");
+        assertThat(first.get("cell3")).isEmpty();
+        assertThat(first.size()).isEqualTo(2);
+        assertThat(second.get("CELL1").orElseThrow().getValue()).isEqualTo("3");
+        assertThat(second.get("cell3").orElseThrow().getValue()).isEqualTo("4");
+        assertThat(second.getVersion()).isEqualTo(first.getVersion() + 1);
+        assertThat(second.cells()).hasSize(3);
+        verify(cellRepository, times(1)).findAllBySheetKey(SHEET_KEY);
+    }
+
+    @Test
+    public void snapshotShouldLoadOnlyCellsStoredSinceItsStamp() {
+        when(cellRepository.findAllBySheetKey(SHEET_KEY)).thenReturn(List.of(getCell("cell1", "1", 1)));
+        SheetSnapshot first = sheetSnapshots.get("testSheet", new SheetVersions.Stamp(1, 1));
+        // a batch stored by another instance
+        when(cellRepository.findAllBySheetKeyAndVersionGreaterThan(SHEET_KEY, 1))
+                .thenReturn(List.of(getCell("cell1", "2", 2), getCell("cell2", "3", 2)));
+
+        SheetSnapshot second = sheetSnapshots.get("testSheet", new SheetVersions.Stamp(2, 2));
+
+        assertThat(sheetSnapshots.get("testSheet", new SheetVersions.Stamp(2, 2))).isSameAs(second);
+        assertThat(first.get("cell1").orElseThrow().getValue()).isEqualTo("1");
+        assertThat(second.get("cell1").orElseThrow().getValue()).isEqualTo("2");
+        assertThat(second.get("cell2")).isPresent();
+        assertThat(second.getSynced()).isEqualTo(2);
+        assertThat(meterRegistry.counter("sheet.snapshot.loads").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("sheet.snapshot.refreshes").count()).isEqualTo(1);
+        verify(cellRepository, times(1)).findAllBySheetKey(SHEET_KEY);
+    }
+
+    @Test
+    public void refreshWithBatchInFlightShouldKeepSyncedStamp() {
+        when(cellRepository.findAllBySheetKey(SHEET_KEY)).thenReturn(List.of(getCell("cell1", "1", 1)));
+        sheetSnapshots.get("testSheet", new SheetVersions.Stamp(1, 1));
+        // batch 2 is still being written, batch 3 is stored
+        when(cellRepository.findAllBySheetKeyAndVersionGreaterThan(SHEET_KEY, 1))
+                .thenReturn(List.of(getCell("cell3", "3", 3)))
+                .thenReturn(List.of(getCell("cell2", "2", 2), getCell("cell3", "3", 3)));
+
+        SheetSnapshot inFlight = sheetSnapshots.get("testSheet", new SheetVersions.Stamp(3, 2));
+        SheetSnapshot settled = sheetSnapshots.get("testSheet", new SheetVersions.Stamp(3, 3));
+
+        assertThat(inFlight.getSynced()).isEqualTo(1);
+        assertThat(inFlight.get("cell2")).isEmpty();
+        assertThat(settled.getSynced()).isEqualTo(3);
+        assertThat(settled.get("cell2")).isPresent();
+        assertThat(settled.cells()).hasSize(3);
+    }
+
+    @Test
+    public void olderCellShouldNotReplaceNewerOne() {
+        when(cellRepository.findAllBySheetKey(SHEET_KEY)).thenReturn(List.of(getCell("cell1", "1", 1)));
+        sheetSnapshots.get("testSheet", new SheetVersions.Stamp(1, 1));
+        sheetSnapshots.publish(List.of(getCell("cell1", "3", 3)));
+        when(cellRepository.findAllBySheetKeyAndVersionGreaterThan(SHEET_KEY, 1))
+                .thenReturn(List.of(getCell("cell1", "2", 2), getCell("cell1", "3", 3)));
+
+        SheetSnapshot snapshot = sheetSnapshots.get("testSheet", new SheetVersions.Stamp(3, 3));
+
+        assertThat(snapshot.get("cell1").orElseThrow().getValue()).isEqualTo("3");
+    }
+
+    @Test
+    public void bigSheetShouldNotBeKeptInMemory() {
+        when(cellRepository.countBySheetKey(SHEET_KEY)).thenReturn(101L);
+
+        assertThat(sheetSnapshots.get("testSheet")).isNull();
+        assertThat(sheetSnapshots.get("testSheet")).isNull();
+        verify(cellRepository, never()).findAllBySheetKey(SHEET_KEY);
+        // the result is remembered
+        verify(cellRepository, times(1)).countBySheetKey(SHEET_KEY);
+    }
+
+    @Test
+    public void peekShouldNotLoadTheSheet() {
+        assertThat(sheetSnapshots.peek("testSheet")).isNull();
+        verifyNoInteractions(cellRepository, sheetVersions);
+
+        when(cellRepository.findAllBySheetKey(SHEET_KEY)).thenReturn(List.of(getCell("cell1", "1")));
+        SheetSnapshot loaded = sheetSnapshots.get("testSheet");
+        assertThat(sheetSnapshots.peek("TESTSHEET")).isSameAs(loaded);
+    }
+
+    @Test
+    public void leastRecentlyUsedSheetShouldBeDropped() {
+        when(cellRepository.findAllBySheetKey(anyString())).thenAnswer(invocation -> List.of(getCell("cell1", "1")));
+        sheetSnapshots.get("sheet1");
+        sheetSnapshots.get("sheet2");
+        sheetSnapshots.get("sheet1");
+        sheetSnapshots.get("sheet3");
+
+        assertThat(sheetSnapshots.peek("sheet1")).isNotNull();
+        assertThat(sheetSnapshots.peek("sheet2")).isNull();
+        assertThat(sheetSnapshots.peek("sheet3")).isNotNull();
+        assertThat(meterRegistry.get("sheet.snapshot.sheets").gauge().value()).isEqualTo(2);
+    }
+
+    @Test
+    public void snapshotGrowingOverLimitShouldBeDropped() {
+        when(cellRepository.findAllBySheetKey(SHEET_KEY)).thenReturn(List.of(getCell("cell0", "0")));
+        sheetSnapshots.get("testSheet");
+        List<CellEntity> cells = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            cells.add(getCell("cell" + i, String.valueOf(i)));
+        }
+        sheetSnapshots.publish(cells);
+        when(cellRepository.countBySheetKey(SHEET_KEY)).thenReturn(101L);
+
+        assertThat(sheetSnapshots.get("testSheet")).isNull();
+    }
+
+    private CellEntity getCell(String name, String value) {
+        return getCell(name, value, 0);
+    }
+
+    private CellEntity getCell(String name, String value, long version) {
+        return CellEntity.builder()
+                .sheetName("testSheet")
+                .name(name)
+                .value(value)
+                .type(CellEntity.CellType.DIGIT)
+                .version(version)
+                .build();
+    }
+}
@@ -0,0 +1,86 @@
+package it.devchallenge.excel.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.devchallenge.excel.model.SheetVersionEntity;
+import it.devchallenge.excel.repository.SheetVersionRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class SheetVersionsTest {
+    private final SheetVersionRepository sheetVersionRepository = mock(SheetVersionRepository.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @AfterEach
+    void clean() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void waitingReadsShouldShareTheReadInFlight() throws Exception {
+        var sheetVersions = new SheetVersions(sheetVersionRepository, meterRegistry, Duration.ofSeconds(5), 16);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(sheetVersionRepository.findById("testsheet")).thenAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            return Optional.of(SheetVersionEntity.builder().id("testsheet").reserved(2).committed(2).build());
+        });
+
+        Future<SheetVersions.Stamp> first = executor.submit(() -> sheetVersions.current("testSheet"));
+        started.await();
+        AtomicReference<Thread> waiting = new AtomicReference<>();
+        Future<SheetVersions.Stamp> second = executor.submit(() -> {
+            waiting.set(Thread.currentThread());
+            return sheetVersions.current("TESTSHEET");
+        });
+        // the second read waits for the future, not for a monitor held across the Mongo read
+        while (waiting.get() == null || waiting.get().getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        release.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo(new SheetVersions.Stamp(2, 2));
+        assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(new SheetVersions.Stamp(2, 2));
+        verify(sheetVersionRepository, times(1)).findById("testsheet");
+    }
+
+    @Test
+    public void ownWriteShouldNotBeServedAStaleVersion() {
+        var sheetVersions = new SheetVersions(sheetVersionRepository, meterRegistry, Duration.ofSeconds(5), 16);
+        when(sheetVersionRepository.findById("testsheet"))
+                .thenReturn(Optional.empty())
+                .thenReturn(Optional.of(SheetVersionEntity.builder().id("testsheet").reserved(1).committed(1).build()));
+
+        assertThat(sheetVersions.current("testSheet")).isEqualTo(SheetVersions.Stamp.NONE);
+        assertThat(sheetVersions.current("testSheet")).isEqualTo(SheetVersions.Stamp.NONE);
+        sheetVersions.commit("testSheet");
+        assertThat(sheetVersions.current("testSheet")).isEqualTo(new SheetVersions.Stamp(1, 1));
+    }
+
+    @Test
+    public void versionsShouldBeKeptForBoundedNumberOfSheets() {
+        var sheetVersions = new SheetVersions(sheetVersionRepository, meterRegistry, Duration.ofSeconds(5), 2);
+        when(sheetVersionRepository.findById(anyString())).thenReturn(Optional.empty());
+
+        for (int i = 0; i < 100; i++) {
+            sheetVersions.current("missing" + i);
+        }
+
+        assertThat(meterRegistry.get("sheet.version.sheets").gauge().value()).isEqualTo(2);
+        // the least recently used sheet was dropped and is read again
+        sheetVersions.current("missing0");
+        verify(sheetVersionRepository, times(2)).findById("missing0");
+        sheetVersions.current("missing99");
+        verify(sheetVersionRepository, times(1)).findById("missing99");
+    }
+}